@@ -10,6 +10,7 @@ import es.amanzag.yatorrent.metafile.MalformedMetadataException;
 import es.amanzag.yatorrent.metafile.MetafileDownloader;
 import es.amanzag.yatorrent.protocol.IncomingConnectionsManager;
 import es.amanzag.yatorrent.protocol.TorrentDownload;
+import es.amanzag.yatorrent.protocol.TorrentEngine;
 import es.amanzag.yatorrent.util.ConfigManager;
 
 public class YaTorrent {
@@ -30,8 +31,9 @@ public class YaTorrent {
             YaTorrentConsoleView view = new YaTorrentConsoleView(eventBus);
             
             System.out.println("Starting ya-torrent engine");
+            TorrentEngine engine = new TorrentEngine();
             IncomingConnectionsManager incoming = new IncomingConnectionsManager(ConfigManager.getPort());
-            TorrentDownload dm = new TorrentDownload(torrentFile, eventBus);
+            TorrentDownload dm = new TorrentDownload(torrentFile, eventBus, engine);
             incoming.addPeerConnectionListener(dm);
             dm.start();
             incoming.start();
@@ -43,7 +45,7 @@ public class YaTorrent {
                     try {
                         view.setActive(false);
                         dm.destroy();
-                        dm.getTorrentThread().join();
+                        engine.shutdown();
                         System.out.println();
                         System.out.println("Bye!");
                     } catch (InterruptedException e) {
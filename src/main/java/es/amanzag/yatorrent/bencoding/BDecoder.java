@@ -5,6 +5,7 @@ package es.amanzag.yatorrent.bencoding;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,62 +13,64 @@ import java.util.Map;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 
 /**
  * @author Alberto Manzaneque
  *
+ * Decodes whole bencoded values into maps, lists, strings and integers. Integers are Longs, or
+ * BigIntegers if they don't fit in a long. The data is parsed with a
+ * {@link BReader}, use it directly to pick only some values from big documents.
  */
 public class BDecoder {
 	
     private final static Charset charset = Charsets.ISO_8859_1;
     
 	private InputStream in;
+	private BReader reader;
 	
+	/**
+	 * The whole stream is read in memory the first time a value is decoded
+	 */
 	public BDecoder(InputStream input) {
 		this.in = input;
 	}
 	
+	public BDecoder(ByteBuffer data) {
+		this.reader = new BReader(data);
+	}
+	
+	public BDecoder(byte[] data) {
+		this.reader = new BReader(data);
+	}
+	
 	public static byte[] toBytes(String s) {
 	    return s.getBytes(charset);
 	}
 	
+	/**
+	 * @return the next value, or null if the current list or dictionary is finished
+	 */
 	@SuppressWarnings("unchecked")
     public <T> T decodeNext() throws IOException {
-		int tempByte = in.read();
+		if(reader == null) {
+		    reader = new BReader(ByteStreams.toByteArray(in));
+		}
 		try {
-		    switch (tempByte) {
-		    case 'd':
+		    switch (reader.next()) {
+		    case DICTIONARY:
 		        return (T) decodeDictionary();
-		    case 'i':
-		        return (T) decodeInteger();
-		    case 'l':
+		    case INTEGER:
+		        return (T) (reader.isBigInteger() ? reader.getBigInteger() : Long.valueOf(reader.getInteger()));
+		    case LIST:
 		        return (T) decodeList();
-		    case '0':
-		    case '1':
-		    case '2':
-		    case '3':
-		    case '4':
-		    case '5':
-		    case '6':
-		    case '7':
-		    case '8':
-		    case '9':
-		        StringBuffer buf = new StringBuffer(10);
-		        while(tempByte != ':') {
-		            if(!Character.isDigit(tempByte))
-		                throw new BEncodingException("Unexpected character");
-		            buf.append((char)tempByte);
-		            tempByte = (char)in.read();
-		        }
-		        return (T) decodeString(Integer.parseInt(buf.toString()));
-		        
-		    case 'e':
+		    case STRING:
+		        return (T) reader.getStringAsText();
+		    case END:
 		        return null;
-		        
 		    default:
-		        throw new BEncodingException("Unexpected character");
+		        throw new BEncodingException("Unexpected end of data");
 		    }
-		    
 		} catch (ClassCastException e) {
 		    throw new BEncodingException("Unexpected type. " + e.getMessage(), e);
 		}
@@ -75,54 +78,16 @@ public class BDecoder {
 	
 	protected Map<String, ?> decodeDictionary() throws IOException {
 	    ImmutableMap.Builder<String, Object> res = ImmutableMap.builder();
-		Object value = null;
-		
-		String key = decodeNext();
-		
-		if(key == null)
-			throw new BEncodingException("Unexpected end of dictionary");
-		
-		value = decodeNext();
-		if(value == null)
-			throw new BEncodingException("Unexpected end of dictionary");
-		res.put(key, value);
-		
-		
-		while(key != null) {
-			key = decodeNext();
-			if(key !=null) {
-				value = decodeNext();
-				if(value == null)
-					throw new BEncodingException("Unexpected end of dictionary");
-				res.put(key, value);
-			}
-
-		}
+	    String key;
+	    while((key = decodeNext()) != null) {
+	        Object value = decodeNext();
+	        if(value == null)
+	            throw new BEncodingException("Unexpected end of dictionary");
+	        res.put(key, value);
+	    }
 		return res.build();
 	}
 	
-	protected String decodeString(int length) throws IOException {
-		byte[] res = new byte[length];
-		for(int i=0; i<length; i++) {
-			res[i] = (byte)in.read();
-		}
-		return new String(res, charset);
-	}
-	
-	protected Integer decodeInteger() throws IOException {
-		char tempByte = (char)in.read();
-		StringBuffer buf = new StringBuffer(10);
-		while(tempByte != 'e') {
-			if(!Character.isDigit(tempByte))
-				throw new BEncodingException("Unexpected character");
-			buf.append(tempByte);
-			tempByte = (char)in.read();
-		}
-		
-		return Integer.valueOf(buf.toString());
-	}
-
-	
 	protected List<?> decodeList() throws IOException {
 		List<Object> res =  new ArrayList<>();
 		Object el = decodeNext();
@@ -1,68 +1,180 @@
 /**
- * 
+ *
  */
 package es.amanzag.yatorrent.bencoding;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-
-import static es.amanzag.yatorrent.bencoding.BDecoder.toBytes;
+import java.util.SortedMap;
 
 /**
  * @author Alberto Manzaneque
  *
+ * Encodes strings, byte strings (byte[] or the remaining bytes of a ByteBuffer), integers of any
+ * size, lists and dictionaries. The size of the result is computed first, so everything is written
+ * in a single buffer with no intermediate objects. Dictionary keys are written in sorted order as
+ * the specification requires.
  */
 public class BEncoder {
 
 	private OutputStream out;
-	
+
 	public BEncoder(OutputStream output) {
 		this.out = output;
 	}
-	
-	public void encode(String s) throws IOException {
-		String length = String.valueOf(toBytes(s).length);
-		out.write(toBytes(length));
-		out.write(':');
-		out.write(toBytes(s));
+
+	public void encode(Object e) throws IOException {
+		ByteBuffer encoded = encode(e, ByteBuffer.allocate(encodedSize(e)));
+		out.write(encoded.array(), 0, encoded.limit());
+	}
+
+	/**
+	 * @return a buffer of the exact size with the encoded value, ready to be read
+	 */
+	public static ByteBuffer toBuffer(Object value) {
+		return encode(value, ByteBuffer.allocate(encodedSize(value)));
+	}
+
+	/**
+	 * Writes the value at the position of the target, which must have at least
+	 * {@link #encodedSize(Object)} bytes remaining
+	 * @return the target, flipped so the encoded value can be read
+	 */
+	public static ByteBuffer encode(Object value, ByteBuffer target) {
+		write(value, target);
+		target.flip();
+		return target;
+	}
+
+	/**
+	 * @return number of bytes of the encoded value
+	 */
+	public static int encodedSize(Object value) {
+		if(value instanceof String) {
+			return stringSize(((String) value).length());
+		} else if(value instanceof byte[]) {
+			return stringSize(((byte[]) value).length);
+		} else if(value instanceof ByteBuffer) {
+			return stringSize(((ByteBuffer) value).remaining());
+		} else if(value instanceof BigInteger) {
+			return 2 + value.toString().length();
+		} else if(value instanceof Number) {
+			return 2 + digits(((Number) value).longValue());
+		} else if(value instanceof Map) {
+			int size = 2;
+			for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += encodedSize(entry.getKey()) + encodedSize(entry.getValue());
+			}
+			return size;
+		} else if(value instanceof List) {
+			int size = 2;
+			for(Object element : (List<?>) value) {
+				size += encodedSize(element);
+			}
+			return size;
+		}
+		throw new BEncodingException("Can't encode "+(value == null ? "null" : value.getClass().getName()));
 	}
-	
-	public void encode(Integer i) throws IOException {
-		out.write(toBytes("i"));
-		out.write(toBytes(String.valueOf(i)));
-		out.write(toBytes("e"));
+
+	private static int stringSize(int length) {
+		return digits(length) + 1 + length;
 	}
-	
-	public void encode(Map<String, Object> d) throws IOException {
-		out.write(toBytes("d"));
-		for (String key : d.keySet()) {
-			encode(key);
-			encode(d.get(key));
+
+	private static int digits(long value) {
+		int digits = value < 0 ? 2 : 1;
+		while((value /= 10) != 0) {
+			digits++;
 		}
-		out.write(toBytes("e"));
+		return digits;
 	}
-	
-	public void encode(List<Object> l) throws IOException {
-		out.write(toBytes("l"));
-		for(Object element : l) {
-			encode(element);
+
+	private static void write(Object value, ByteBuffer target) {
+		if(value instanceof String) {
+			String s = (String) value;
+			writeNumber(s.length(), target);
+			target.put((byte) ':');
+			for(int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				// same as encoding it in ISO-8859-1
+				target.put(c <= 0xFF ? (byte) c : (byte) '?');
+			}
+		} else if(value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			writeNumber(bytes.length, target);
+			target.put((byte) ':');
+			target.put(bytes);
+		} else if(value instanceof ByteBuffer) {
+			ByteBuffer bytes = ((ByteBuffer) value).duplicate();
+			writeNumber(bytes.remaining(), target);
+			target.put((byte) ':');
+			target.put(bytes);
+		} else if(value instanceof BigInteger) {
+			target.put((byte) 'i');
+			String digits = value.toString();
+			for(int i = 0; i < digits.length(); i++) {
+				target.put((byte) digits.charAt(i));
+			}
+			target.put((byte) 'e');
+		} else if(value instanceof Number) {
+			target.put((byte) 'i');
+			writeNumber(((Number) value).longValue(), target);
+			target.put((byte) 'e');
+		} else if(value instanceof Map) {
+			target.put((byte) 'd');
+			Map<?, ?> map = (Map<?, ?>) value;
+			if(map instanceof SortedMap && ((SortedMap<?, ?>) map).comparator() == null) {
+				for(Map.Entry<?, ?> entry : map.entrySet()) {
+					writeKey(entry.getKey(), target);
+					write(entry.getValue(), target);
+				}
+			} else {
+				Object[] keys = map.keySet().toArray();
+				Arrays.sort(keys);
+				for(Object key : keys) {
+					writeKey(key, target);
+					write(map.get(key), target);
+				}
+			}
+			target.put((byte) 'e');
+		} else if(value instanceof List) {
+			target.put((byte) 'l');
+			for(Object element : (List<?>) value) {
+				write(element, target);
+			}
+			target.put((byte) 'e');
+		} else {
+			throw new BEncodingException("Can't encode "+(value == null ? "null" : value.getClass().getName()));
 		}
-		out.write(toBytes("e"));		
 	}
-	
-	@SuppressWarnings("unchecked")
-    public void encode(Object e) throws IOException {
-		if(e instanceof String) {
-			encode((String)e);
-		} else if (e instanceof Integer) {
-			encode((Integer)e);
-		} else if (e instanceof Map) {
-			encode((Map<String, Object>)e);
-		} else if (e instanceof List) {
-			encode((List<Object>)e);
+
+	private static void writeKey(Object key, ByteBuffer target) {
+		if(!(key instanceof String)) {
+			throw new BEncodingException("Dictionary keys must be strings, found "+key);
+		}
+		write(key, target);
+	}
+
+	/**
+	 * Writes the decimal digits of the number without going through a String
+	 */
+	private static void writeNumber(long value, ByteBuffer target) {
+		int length = digits(value);
+		int end = target.position() + length;
+		int i = end;
+		long remaining = value;
+		do {
+			target.put(--i, (byte) ('0' + Math.abs(remaining % 10)));
+			remaining /= 10;
+		} while(remaining != 0);
+		if(value < 0) {
+			target.put(--i, (byte) '-');
 		}
+		target.position(end);
 	}
 
 }
@@ -0,0 +1,267 @@
+package es.amanzag.yatorrent.bencoding;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Pull parser of bencoded data held in memory. Values are read one token at a time with
+ * {@link #next()}, so callers can look for the keys they need and {@link #skipValue() skip} the rest
+ * without building any object. Byte strings are returned as slices of the original buffer, they are
+ * never copied.
+ * <p>
+ * Example, reading a single key of a dictionary:
+ * <pre>
+ * reader.expect(Token.DICTIONARY);
+ * while (reader.next() == Token.STRING) {
+ *     if (reader.getStringAsText().equals("interval")) {
+ *         reader.expect(Token.INTEGER);
+ *         interval = reader.getInteger();
+ *     } else {
+ *         reader.skipValue();
+ *     }
+ * }
+ * </pre>
+ */
+public class BReader {
+
+    public enum Token {
+        /** Start of a dictionary, its keys and values come next until {@link #END} */
+        DICTIONARY,
+        /** Start of a list, its elements come next until {@link #END} */
+        LIST,
+        INTEGER,
+        STRING,
+        /** End of the current dictionary or list */
+        END,
+        /** No more data */
+        EOF
+    }
+
+    private final static Charset charset = Charsets.ISO_8859_1;
+
+    private ByteBuffer data;
+    private int depth;
+    private long integer;
+    /** Value of the last integer read when it doesn't fit in a long */
+    private BigInteger bigInteger;
+    private int stringStart, stringLength;
+    private int tokenStart;
+
+    /**
+     * @param data read from its position to its limit. The buffer is not modified.
+     */
+    public BReader(ByteBuffer data) {
+        this.data = data.duplicate();
+        depth = 0;
+    }
+
+    public BReader(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return the type of the next token, without consuming it
+     */
+    public Token peek() {
+        if (!data.hasRemaining()) {
+            return Token.EOF;
+        }
+        byte b = data.get(data.position());
+        switch (b) {
+        case 'd':
+            return Token.DICTIONARY;
+        case 'l':
+            return Token.LIST;
+        case 'i':
+            return Token.INTEGER;
+        case 'e':
+            return Token.END;
+        default:
+            if (b >= '0' && b <= '9') {
+                return Token.STRING;
+            }
+            throw new BEncodingException("Unexpected character '"+(char) b+"' at "+data.position());
+        }
+    }
+
+    /**
+     * Consumes the next token. The value of integers and strings can be read afterwards with
+     * {@link #getInteger()} and {@link #getString()}.
+     */
+    public Token next() {
+        Token token = peek();
+        tokenStart = data.position();
+        switch (token) {
+        case DICTIONARY:
+        case LIST:
+            data.get();
+            depth++;
+            break;
+        case END:
+            if (depth == 0) {
+                throw new BEncodingException("Unexpected end of container at "+data.position());
+            }
+            data.get();
+            depth--;
+            break;
+        case INTEGER:
+            data.get();
+            integer = parseNumber('e');
+            break;
+        case STRING:
+            long length = parseNumber(':');
+            if (bigInteger != null || length > data.remaining()) {
+                throw new BEncodingException("String of "+length+" bytes at "+tokenStart+" goes beyond the end of the data");
+            }
+            stringStart = data.position();
+            stringLength = (int) length;
+            data.position(stringStart + stringLength);
+            break;
+        case EOF:
+            break;
+        }
+        return token;
+    }
+
+    /**
+     * Consumes the next token, failing if it isn't of the given type
+     */
+    public void expect(Token expected) {
+        Token token = next();
+        if (token != expected) {
+            throw new BEncodingException("Expected "+expected+" at "+tokenStart+" but found "+token);
+        }
+    }
+
+    /**
+     * Consumes the next value entirely, including everything inside if it is a container
+     */
+    public void skipValue() {
+        int startDepth = depth;
+        Token token = next();
+        if (token == Token.END || token == Token.EOF) {
+            throw new BEncodingException("Expected a value at "+tokenStart+" but found "+token);
+        }
+        while (depth > startDepth) {
+            if (next() == Token.EOF) {
+                throw new BEncodingException("Unexpected end of data inside a container");
+            }
+        }
+    }
+
+    /**
+     * Numbers that don't fit in a long are left in {@link #bigInteger}
+     */
+    private long parseNumber(char terminator) {
+        bigInteger = null;
+        int start = data.position();
+        boolean negative = false;
+        if (data.hasRemaining() && data.get(data.position()) == '-') {
+            negative = true;
+            data.get();
+        }
+        long value = 0;
+        int digits = 0;
+        boolean overflow = false;
+        while (true) {
+            if (!data.hasRemaining()) {
+                throw new BEncodingException("Unexpected end of data in number at "+tokenStart);
+            }
+            byte b = data.get();
+            if (b == terminator) {
+                break;
+            }
+            if (b < '0' || b > '9') {
+                throw new BEncodingException("Unexpected character '"+(char) b+"' in number at "+tokenStart);
+            }
+            if (!overflow && value > (Long.MAX_VALUE - (b - '0')) / 10) {
+                overflow = true;
+            }
+            value = value * 10 + (b - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            throw new BEncodingException("Empty number at "+tokenStart);
+        }
+        if (overflow) {
+            byte[] text = new byte[data.position() - 1 - start];
+            ByteBuffer number = data.duplicate();
+            number.position(start);
+            number.get(text);
+            bigInteger = new BigInteger(new String(text, charset));
+            return 0;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the value of the last {@link Token#INTEGER} read
+     * @throws BEncodingException if it doesn't fit in a long
+     */
+    public long getInteger() {
+        if (bigInteger != null) {
+            throw new BEncodingException("Integer at "+tokenStart+" is too big: "+bigInteger);
+        }
+        return integer;
+    }
+
+    /**
+     * @return whether the last {@link Token#INTEGER} read doesn't fit in a long
+     */
+    public boolean isBigInteger() {
+        return bigInteger != null;
+    }
+
+    public BigInteger getBigInteger() {
+        return bigInteger != null ? bigInteger : BigInteger.valueOf(integer);
+    }
+
+    /**
+     * @return the content of the last {@link Token#STRING} read, as a slice of the data that
+     * shares its content
+     */
+    public ByteBuffer getString() {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(stringStart + stringLength);
+        slice.position(stringStart);
+        return slice.slice();
+    }
+
+    public byte[] getStringAsBytes() {
+        byte[] bytes = new byte[stringLength];
+        getString().get(bytes);
+        return bytes;
+    }
+
+    public String getStringAsText() {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + stringStart, stringLength, charset);
+        }
+        return new String(getStringAsBytes(), charset);
+    }
+
+    /**
+     * @return the position in the data where the last token read starts
+     */
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    /**
+     * @return the position in the data right after the last token read
+     */
+    public int getPosition() {
+        return data.position();
+    }
+
+    /**
+     * @return number of dictionaries and lists opened and not finished yet
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+}
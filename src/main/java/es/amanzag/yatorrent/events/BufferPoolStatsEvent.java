@@ -0,0 +1,9 @@
+package es.amanzag.yatorrent.events;
+
+public class BufferPoolStatsEvent {
+
+    public long hits;
+    public long misses;
+    public long allocatedBytes;
+
+}
@@ -0,0 +1,10 @@
+package es.amanzag.yatorrent.events;
+
+public class ReadCacheStatsEvent {
+
+    public long hits;
+    public long misses;
+    public long cachedBytes;
+    public int cachedPieces;
+
+}
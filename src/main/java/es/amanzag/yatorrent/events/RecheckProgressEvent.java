@@ -0,0 +1,8 @@
+package es.amanzag.yatorrent.events;
+
+public class RecheckProgressEvent {
+
+    public int checkedPieces;
+    public int totalPieces;
+
+}
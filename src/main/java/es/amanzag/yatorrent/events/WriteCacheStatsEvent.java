@@ -0,0 +1,10 @@
+package es.amanzag.yatorrent.events;
+
+public class WriteCacheStatsEvent {
+
+    public long dirtyBytes;
+    public int dirtyPieces;
+    public long flushedBytes;
+    public long flushes;
+
+}
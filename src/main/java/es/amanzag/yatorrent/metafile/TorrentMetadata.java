@@ -3,24 +3,26 @@
  */
 package es.amanzag.yatorrent.metafile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import es.amanzag.yatorrent.bencoding.BDecoder;
-import es.amanzag.yatorrent.bencoding.BEncoder;
 import es.amanzag.yatorrent.bencoding.BEncodingException;
+import es.amanzag.yatorrent.bencoding.BReader;
+import es.amanzag.yatorrent.bencoding.BReader.Token;
 
 /**
  * @author Alberto Manzaneque
@@ -30,16 +32,24 @@ public class TorrentMetadata {
 	
 	public static class ContainedFile {
 		private String name;
-		private Integer length;
+		private long length;
+		private long offset;
 		private ContainedFile() {}
 		public long getLength() {
 			return length;
 		}
+		/**
+		 * @return position of the first byte of the file in the data of the torrent
+		 */
+		public long getOffset() {
+			return offset;
+		}
 		public String getName() {
 			return name;
 		}
 	}
 	
+	public final static int HASH_LENGTH = 20;
 	
 	private String announce;
 	private List<String> announceList;
@@ -47,26 +57,26 @@ public class TorrentMetadata {
 	private String createdBy;
 	private String comment;
 	private boolean multifile;
-	private Integer pieceLength;
-	private List<byte[]> pieceHashes;
+	private int pieceLength;
+	/** SHA-1 of every piece, one after another */
+	private byte[] pieceHashes;
 	private String directory;
 	private List<ContainedFile> files;
 	private byte[] infoHash;
 	private long totalLength;
 	
 	private TorrentMetadata() {
-		pieceHashes = new ArrayList<byte[]>();
 		files = new ArrayList<ContainedFile>();
 	}
 	
 	
 	public static TorrentMetadata createFromFile(File file) throws IOException, MalformedMetadataException {
-		BDecoder decoder = new BDecoder(new FileInputStream(file));
+		byte[] content = Files.readAllBytes(file.toPath());
 		Map<String, Object> root = null;
 
 		TorrentMetadata result = new TorrentMetadata();
 		try {
-		    root = decoder.decodeNext();
+		    root = decodeDictionary(ByteBuffer.wrap(content), "info");
 		    result.announce = (String) root.get("announce");
 			if(result.announce == null) {
 			    throw new MalformedMetadataException("announce not present in .torrent");
@@ -80,47 +90,46 @@ public class TorrentMetadata {
 			}
 			
 			
-			Integer creationDate = (Integer) root.get("creation date");
+			Long creationDate = (Long) root.get("creation date");
 			if(creationDate != null) {
-			    result.creationDate = new Date(creationDate);
+			    result.creationDate = new Date(creationDate * 1000);
 			}
 			
 			result.comment = (String) root.get("comment");
 			result.createdBy = (String) root.get("created by");
 			
-			@SuppressWarnings("unchecked")
-            Map<String, Object> info = (Map<String, Object>) root.get("info");
+			ByteBuffer info = (ByteBuffer) root.get("info");
 			if(info == null) {
-                throw new MalformedMetadataException("announce not present in .torrent");
+                throw new MalformedMetadataException("info not present in .torrent");
             }
 			
-			// obtain the info_hash
-			ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
-			BEncoder encoder = new BEncoder(stream);
-			encoder.encode(info);
+			// the info_hash is computed over the original bytes, re-encoding them could change them
 			MessageDigest sha1 = MessageDigest.getInstance("SHA1");
-			byte[] data = Arrays.copyOf(stream.toByteArray(), stream.size());
-			sha1.update(data);
+			sha1.update(info.duplicate());
 			result.infoHash = sha1.digest();
 			
-			root = info;
-			result.pieceLength = (Integer) root.get("piece length");
-			if(result.pieceLength == null) {
+			root = decodeDictionary(info, "pieces");
+			Long pieceLength = (Long) root.get("piece length");
+			if(pieceLength == null) {
                 throw new MalformedMetadataException("piece length not present in .torrent");
             }
+			if(pieceLength <= 0 || pieceLength > Integer.MAX_VALUE) {
+			    throw new MalformedMetadataException("invalid piece length "+pieceLength);
+			}
+			result.pieceLength = pieceLength.intValue();
 			
-			String pieces = (String) root.get("pieces");
+			ByteBuffer pieces = (ByteBuffer) root.get("pieces");
 			if(pieces == null) {
                 throw new MalformedMetadataException("pieces not present in .torrent");
             }
-			byte[] hashes = BDecoder.toBytes(pieces);
-			if(hashes.length % 20 != 0)
+			// taken from the original bytes, never decoded into a string
+			BReader piecesReader = new BReader(pieces);
+			piecesReader.expect(Token.STRING);
+			result.pieceHashes = piecesReader.getStringAsBytes();
+			if(result.pieceHashes.length == 0 || result.pieceHashes.length % HASH_LENGTH != 0)
 				throw new MalformedMetadataException("incorrect length of pieces");
-			for(int bytesRead = 0; bytesRead < hashes.length; bytesRead += 20) {
-				result.pieceHashes.add(Arrays.copyOfRange(hashes, bytesRead, bytesRead+20));
-			}
 			
-			Integer length = (Integer) root.get("length");
+			Long length = (Long) root.get("length");
 			if(length != null) { // 1 file torrent
 				result.directory = "";
 				ContainedFile cFile = new ContainedFile();
@@ -147,10 +156,11 @@ public class TorrentMetadata {
                     Map<String, Object> dir =  (Map<String, Object>) next;
 					ContainedFile cFile = new ContainedFile();
 	
-					cFile.length = (Integer) dir.get("length");
-					if(cFile.length == null) {
+					Long fileLength = (Long) dir.get("length");
+					if(fileLength == null) {
                         throw new MalformedMetadataException("file length not present");
                     }
+					cFile.length = fileLength;
 					
 					@SuppressWarnings("unchecked")
                     List<String> pathList = (List<String>) dir.get("path");
@@ -176,7 +186,17 @@ public class TorrentMetadata {
 			
 			result.totalLength = 0;
 			for (ContainedFile tmpFile : result.files) {
-				result.totalLength += tmpFile.getLength();
+				if(tmpFile.length < 0) {
+				    throw new MalformedMetadataException("invalid length of file "+tmpFile.name);
+				}
+				tmpFile.offset = result.totalLength;
+				result.totalLength += tmpFile.length;
+			}
+			
+			long expectedPieces = (result.totalLength + result.pieceLength - 1) / result.pieceLength;
+			if(expectedPieces != result.getNumPieces()) {
+			    throw new MalformedMetadataException(result.getNumPieces()+" pieces found but "+
+			            expectedPieces+" are needed for "+result.totalLength+" bytes");
 			}
 			
 		} catch (ClassCastException e) {
@@ -191,6 +211,30 @@ public class TorrentMetadata {
 		
 		return result;
 	}
+	
+	/**
+	 * Decodes the values of a dictionary, except the value of the raw key, which is left as the
+	 * slice of the data where it is encoded
+	 */
+	private static Map<String, Object> decodeDictionary(ByteBuffer dictionary, String rawKey) throws IOException {
+	    Map<String, Object> result = new HashMap<>();
+	    BReader reader = new BReader(dictionary);
+	    reader.expect(Token.DICTIONARY);
+	    Token token;
+	    while ((token = reader.next()) == Token.STRING) {
+	        String key = reader.getStringAsText();
+	        int start = reader.getPosition();
+	        reader.skipValue();
+	        ByteBuffer value = dictionary.duplicate();
+	        value.limit(reader.getPosition());
+	        value.position(start);
+	        result.put(key, key.equals(rawKey) ? value.slice() : new BDecoder(value).decodeNext());
+	    }
+	    if (token != Token.END) {
+	        throw new BEncodingException("Unexpected end of dictionary");
+	    }
+	    return result;
+	}
 
 
 	public String getAnnounce() {
@@ -231,8 +275,32 @@ public class TorrentMetadata {
 	}
 
 
-	public List<byte[]> getPieceHashes() {
-		return pieceHashes;
+	public int getNumPieces() {
+		return pieceHashes.length / HASH_LENGTH;
+	}
+	
+	/**
+	 * @return a copy of the SHA-1 of a piece
+	 */
+	public byte[] getPieceHash(int index) {
+		int start = index * HASH_LENGTH;
+		return Arrays.copyOfRange(pieceHashes, start, start + HASH_LENGTH);
+	}
+	
+	/**
+	 * @return whether the digest is the SHA-1 of the piece, without copying it
+	 */
+	public boolean pieceHashMatches(int index, byte[] digest) {
+		if(digest.length != HASH_LENGTH) {
+			return false;
+		}
+		int start = index * HASH_LENGTH;
+		for(int i = 0; i < HASH_LENGTH; i++) {
+			if(pieceHashes[start + i] != digest[i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 
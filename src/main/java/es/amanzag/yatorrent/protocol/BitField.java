@@ -1,103 +1,277 @@
 package es.amanzag.yatorrent.protocol;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Set of pieces, as exchanged in the bitfield message. The bits are kept in 64-bit words, so the
+ * operations between bitfields work on 64 pieces at a time and most of them don't allocate
+ * anything. The bits past the size are always clear.
+ * <p>
+ * Piece i is the bit (i % 64) of the word i / 64. In the wire format it is the bit (7 - i % 8) of
+ * the byte i / 8, which is the same as reversing every word and writing it big-endian.
+ */
 public class BitField {
-    
+
     private int numberOfPieces;
-    private byte[] statuses;
-    
+    private long[] words;
+
     public BitField(int numberOfPieces) {
-        this(numberOfPieces, new byte[numberOfPieces/8 + (numberOfPieces%8 > 0 ? 1 : 0)]);
+        this.numberOfPieces = numberOfPieces;
+        words = new long[(numberOfPieces + 63) >>> 6];
     }
-    
+
+    /**
+     * @param statuses in the wire format. The spare bits of the last byte are ignored.
+     */
     public BitField(int numberOfPieces, byte[] statuses) {
+        this(numberOfPieces);
         if(numberOfPieces > statuses.length * 8 || numberOfPieces < statuses.length*8-7) {
             throw new IllegalArgumentException("Incorrect bitfield length");
         }
-        this.numberOfPieces = numberOfPieces;
-        this.statuses = statuses;
+        ByteBuffer data = ByteBuffer.wrap(statuses);
+        int word = 0;
+        while (data.remaining() >= 8) {
+            words[word++] = Long.reverse(data.getLong());
+        }
+        for (int shift = 0; data.hasRemaining(); shift += 8) {
+            words[word] |= (long) (Integer.reverse(Byte.toUnsignedInt(data.get())) >>> 24) << shift;
+        }
+        clearSpareBits();
     }
-    
+
+    private void clearSpareBits() {
+        if (numberOfPieces % 64 != 0) {
+            words[words.length - 1] &= -1L >>> (64 - numberOfPieces % 64);
+        }
+    }
+
+    private void checkSameSize(BitField other) {
+        if (numberOfPieces != other.numberOfPieces) {
+            throw new IllegalArgumentException("Bitfields of different length: "+numberOfPieces+" and "+other.numberOfPieces);
+        }
+    }
+
+    /**
+     * Sets the bits that are set in the other bitfield
+     */
     public void add(BitField other) {
-        if (statuses.length != other.statuses.length || numberOfPieces != other.numberOfPieces) {
-            throw new IllegalArgumentException("Can't add a bitfield to another of different length");
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
         }
-        for (int i = 0; i < statuses.length; i++) {
-            statuses[i] = (byte) (statuses[i] | other.statuses[i]);
+    }
+
+    /**
+     * Clears the bits that are not set in the other bitfield
+     */
+    public void and(BitField other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
         }
     }
-    
+
+    /**
+     * Clears the bits that are set in the other bitfield
+     */
+    public void andNot(BitField other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
     public void setPresent(int position, boolean present) {
-        int byteIndex = position / 8;
-        int offset = position % 8;
-        byte newByte = 0;
+        checkPosition(position);
         if (present) {
-            newByte = (byte) (statuses[byteIndex] | (0b10000000 >>> offset));
+            words[position >>> 6] |= 1L << position;
         } else {
-            newByte = (byte) (statuses[byteIndex] & ~(0b10000000 >>> offset));
+            words[position >>> 6] &= ~(1L << position);
         }
-        statuses[byteIndex] = newByte;
     }
-    
+
     public boolean isPresent(int position) {
-        int byteIndex = position / 8;
-        int offset = position % 8;
-        return (Byte.toUnsignedInt(statuses[byteIndex]) & (0b10000000 >>> offset)) != 0;
+        checkPosition(position);
+        return (words[position >>> 6] & (1L << position)) != 0;
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= numberOfPieces) {
+            throw new IndexOutOfBoundsException("Piece "+position+" out of "+numberOfPieces);
+        }
     }
-    
+
     public int getSize() {
         return numberOfPieces;
     }
-    
+
     public boolean hasBitsSet() {
-        for (int i=0; i<statuses.length-1; i++) {
-            if(statuses[i] != 0) {
+        for (long word : words) {
+            if (word != 0) {
                 return true;
             }
         }
-        byte lastByte = statuses[statuses.length-1];
-        int numberOfBitsInLast = numberOfPieces % 8;
-        if(numberOfBitsInLast==0) {
-            return lastByte != 0;
-        }
-        byte lastMask = (byte) ~(0xFF >>> numberOfBitsInLast);
-        return (byte)(lastByte & lastMask) != 0;
+        return false;
     }
-    
+
     public boolean hasBitsUnset() {
-        for (int i=0; i<statuses.length-1; i++) {
-            if(~statuses[i] != 0) {
+        return nextClearBit(0) >= 0;
+    }
+
+    /**
+     * @return number of bits set
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return whether there is any bit set in both bitfields
+     */
+    public boolean intersects(BitField other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & other.words[i]) != 0) {
                 return true;
             }
         }
-        byte lastByte = statuses[statuses.length-1];
-        int numberOfBitsInLast = numberOfPieces % 8;
-        if(numberOfBitsInLast==0) {
-            return ~lastByte != 0;
+        return false;
+    }
+
+    /**
+     * @return whether every bit set in the other bitfield is also set in this one
+     */
+    public boolean containsAll(BitField other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length; i++) {
+            if ((other.words[i] & ~words[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bits set in this bitfield and not in the other one
+     */
+    public int cardinalityAndNot(BitField other) {
+        checkSameSize(other);
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i] & ~other.words[i]);
         }
-        byte lastMask = (byte) (0xFF >>> numberOfBitsInLast);
-        return (byte)~(lastByte | lastMask) != 0;
+        return count;
     }
-    
-    public BitField intersection(BitField other) {
-        if (this.numberOfPieces != other.numberOfPieces) {
-            throw new IllegalArgumentException();
+
+    /**
+     * Iterates the bits set with <code>for (int i = bf.nextSetBit(0); i >= 0; i = bf.nextSetBit(i+1))</code>
+     * @return the first bit set from the given position on, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from >= numberOfPieces) {
+            return -1;
+        }
+        int index = from >>> 6;
+        long word = words[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+        return index * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return the first bit set in both bitfields from the given position on, or -1 if there is none
+     */
+    public int nextCommonBit(BitField other, int from) {
+        checkSameSize(other);
+        if (from >= numberOfPieces) {
+            return -1;
+        }
+        int index = from >>> 6;
+        long word = words[index] & other.words[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index] & other.words[index];
         }
-        byte[] result = new byte[statuses.length];
-        for (int i=0; i<this.statuses.length; i++) {
-            result[i] = (byte) (this.statuses[i] & other.statuses[i]);
+        return index * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return the first bit not set from the given position on, or -1 if there is none
+     */
+    public int nextClearBit(int from) {
+        if (from >= numberOfPieces) {
+            return -1;
+        }
+        int index = from >>> 6;
+        long word = ~words[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = ~words[index];
         }
-        return new BitField(this.numberOfPieces, result);
+        int position = index * 64 + Long.numberOfTrailingZeros(word);
+        return position < numberOfPieces ? position : -1;
+    }
+
+    public BitField intersection(BitField other) {
+        BitField result = copy();
+        result.and(other);
+        return result;
     }
 
     public BitField reverse() {
-        byte[] result = new byte[statuses.length];
-        for (int i=0; i<this.statuses.length; i++) {
-            result[i] = (byte) ~this.statuses[i];
+        BitField result = new BitField(numberOfPieces);
+        for (int i = 0; i < words.length; i++) {
+            result.words[i] = ~words[i];
+        }
+        result.clearSpareBits();
+        return result;
+    }
+
+    public BitField copy() {
+        BitField result = new BitField(numberOfPieces);
+        System.arraycopy(words, 0, result.words, 0, words.length);
+        return result;
+    }
+
+    /**
+     * @return number of bytes of the bitfield in the wire format
+     */
+    public int getByteLength() {
+        return (numberOfPieces + 7) >>> 3;
+    }
+
+    /**
+     * Puts the bitfield in the wire format at the position of the buffer
+     */
+    public void writeTo(ByteBuffer target) {
+        int bytes = getByteLength();
+        int word = 0;
+        for (; bytes >= 8; bytes -= 8) {
+            target.putLong(Long.reverse(words[word++]));
+        }
+        for (int shift = 0; bytes > 0; bytes--, shift += 8) {
+            target.put((byte) (Integer.reverse((int) (words[word] >>> shift) & 0xFF) >>> 24));
         }
-        return new BitField(this.numberOfPieces, result);
     }
-    
+
+    /**
+     * @return a copy of the bitfield in the wire format
+     */
     public byte[] asByteArray() {
-        return statuses;
+        ByteBuffer result = ByteBuffer.allocate(getByteLength());
+        writeTo(result);
+        return result.array();
     }
 }
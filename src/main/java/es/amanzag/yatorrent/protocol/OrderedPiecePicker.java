@@ -0,0 +1,158 @@
+package es.amanzag.yatorrent.protocol;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * Base for pickers that group the needed pieces in levels of preference, one bitfield per level.
+ * A pick walks the levels from the best one and looks for the first one that intersects the
+ * bitfield of the peer, 64 pieces at a time. It costs O(L * n / 64) word operations, L being the
+ * number of levels walked, which is at most the number of distinct availabilities (times the
+ * number of priorities). Whenever something the level depends on changes, the piece is moved to
+ * its new level, which costs O(log L). The pieces being downloaded aren't in any level.
+ */
+abstract class OrderedPiecePicker implements PiecePicker {
+    
+    protected final int[] availability;
+    private final int numberOfPieces;
+    private final BitField needed;
+    private final TreeMap<Long, Level> levels;
+    private final Random random;
+    
+    private static class Level {
+        private final BitField pieces;
+        private int count;
+        
+        private Level(int numberOfPieces) {
+            pieces = new BitField(numberOfPieces);
+        }
+    }
+    
+    protected OrderedPiecePicker(BitField localBitField) {
+        numberOfPieces = localBitField.getSize();
+        availability = new int[numberOfPieces];
+        needed = new BitField(numberOfPieces);
+        levels = new TreeMap<>();
+        random = new Random();
+    }
+    
+    /**
+     * Must be called by subclasses once they're initialized, as the levels depend on their state
+     */
+    protected void addNeededPieces(BitField localBitField) {
+        for (int i = localBitField.nextClearBit(0); i >= 0; i = localBitField.nextClearBit(i+1)) {
+            setNeeded(i, true);
+        }
+    }
+    
+    /**
+     * @return the level of a piece. Pieces in lower levels are downloaded first.
+     */
+    protected abstract long level(int pieceIndex);
+    
+    /**
+     * @return where to start looking for a piece within a level. By default a random position,
+     * so different clients don't chase the same pieces.
+     */
+    protected int searchStart() {
+        return random.nextInt(numberOfPieces);
+    }
+    
+    @Override
+    public void addAvailability(BitField peerPieces) {
+        for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i+1)) {
+            changeAvailability(i, 1);
+        }
+    }
+    
+    @Override
+    public void addAvailability(int pieceIndex) {
+        changeAvailability(pieceIndex, 1);
+    }
+    
+    @Override
+    public void removeAvailability(BitField peerPieces) {
+        for (int i = peerPieces.nextSetBit(0); i >= 0; i = peerPieces.nextSetBit(i+1)) {
+            changeAvailability(i, -1);
+        }
+    }
+    
+    private void changeAvailability(int pieceIndex, int delta) {
+        reorder(pieceIndex, () -> availability[pieceIndex] += delta);
+    }
+    
+    /**
+     * Changes something that affects the level of a piece, moving it to its new level
+     */
+    protected void reorder(int pieceIndex, Runnable change) {
+        boolean candidate = needed.isPresent(pieceIndex);
+        if (candidate) {
+            removeFromLevel(pieceIndex);
+        }
+        change.run();
+        if (candidate) {
+            addToLevel(pieceIndex);
+        }
+    }
+    
+    private void addToLevel(int pieceIndex) {
+        Level level = levels.computeIfAbsent(level(pieceIndex), k -> new Level(numberOfPieces));
+        level.pieces.setPresent(pieceIndex, true);
+        level.count++;
+    }
+    
+    private void removeFromLevel(int pieceIndex) {
+        long key = level(pieceIndex);
+        Level level = levels.get(key);
+        level.pieces.setPresent(pieceIndex, false);
+        if (--level.count == 0) {
+            levels.remove(key);
+        }
+    }
+    
+    @Override
+    public void setNeeded(int pieceIndex, boolean needed) {
+        if (this.needed.isPresent(pieceIndex) == needed) {
+            return;
+        }
+        this.needed.setPresent(pieceIndex, needed);
+        if (needed) {
+            addToLevel(pieceIndex);
+        } else {
+            removeFromLevel(pieceIndex);
+        }
+    }
+    
+    @Override
+    public void setPriority(int pieceIndex, int priority) {
+    }
+    
+    @Override
+    public Optional<Integer> pick(BitField peerPieces, IntPredicate accept) {
+        if (!needed.intersects(peerPieces)) {
+            return Optional.empty();
+        }
+        for (Map.Entry<Long, Level> entry : levels.entrySet()) {
+            BitField pieces = entry.getValue().pieces;
+            if (!pieces.intersects(peerPieces)) {
+                continue;
+            }
+            int start = searchStart();
+            for (int i = pieces.nextCommonBit(peerPieces, start); i >= 0; i = pieces.nextCommonBit(peerPieces, i+1)) {
+                if (accept.test(i)) {
+                    return Optional.of(i);
+                }
+            }
+            for (int i = pieces.nextCommonBit(peerPieces, 0); i >= 0 && i < start; i = pieces.nextCommonBit(peerPieces, i+1)) {
+                if (accept.test(i)) {
+                    return Optional.of(i);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+}
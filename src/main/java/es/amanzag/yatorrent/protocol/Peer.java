@@ -20,6 +20,7 @@ import es.amanzag.yatorrent.util.Util;
 public class Peer {
     
     private final static Duration RECONNECT_INTERVAL = Duration.ofSeconds(60);
+    private final static int CORRUPT_PIECE_PENALTY = 2;
 	
 	private String address;
 	private int port;
@@ -81,6 +82,13 @@ public class Peer {
 	    lastDisconnection = Instant.now();
 	}
 	
+	/**
+	 * The peer took part in the download of a piece that didn't match its checksum
+	 */
+	public void recordCorruptPiece() {
+	    score -= CORRUPT_PIECE_PENALTY;
+	}
+	
 	public boolean shouldForget() {
 	    return score < -2;
 	}
@@ -19,11 +19,12 @@ import org.slf4j.LoggerFactory;
 import es.amanzag.yatorrent.metafile.TorrentMetadata;
 import es.amanzag.yatorrent.protocol.io.MessageReader;
 import es.amanzag.yatorrent.protocol.io.MessageWriter;
+import es.amanzag.yatorrent.protocol.io.NetworkEventLoop;
 import es.amanzag.yatorrent.protocol.messages.MalformedMessageException;
 import es.amanzag.yatorrent.protocol.messages.RawMessage;
+import es.amanzag.yatorrent.storage.DiskIoPool;
 import es.amanzag.yatorrent.storage.Piece;
 import es.amanzag.yatorrent.storage.TorrentStorage;
-import es.amanzag.yatorrent.storage.TorrentStorageException;
 import es.amanzag.yatorrent.util.ConfigManager;
 
 /**
@@ -32,9 +33,10 @@ import es.amanzag.yatorrent.util.ConfigManager;
  */
 public class PeerConnection implements PeerMessageProducer {
 	
-    private final static int MAX_BLOCK_QUEUE_SIZE = 5;
     private final static int MAX_BLOCK_REQUEST = 16 * 1024;
-    private final static int BLOCK_SIZE = MAX_BLOCK_REQUEST;
+    final static int BLOCK_SIZE = MAX_BLOCK_REQUEST;
+    /** Time without receiving any of the requested blocks after which a peer is considered stalled */
+    private final static long STALL_TIMEOUT = 15000;
 	private static Logger logger = LoggerFactory.getLogger(PeerConnection.class);
 	
 	private Peer peer;
@@ -46,12 +48,23 @@ public class PeerConnection implements PeerMessageProducer {
 	private MessageWriter messageWriter;
 	private Optional<TorrentMetadata> torrentMetadata;
 	private Optional<BitField> bitField;
-	private Optional<DownloadStatus> downloadStatus;
+	private RequestPipeline requestPipeline;
 	private Optional<TorrentStorage> storage;
+	private DiskIoPool diskIo;
+	/** Whether a piece is being read into memory before uploading it */
+	private boolean readingPiece;
 	private boolean seeder;
+	/** Pieces the peer has that we don't, kept up to date by the torrent */
+	private int interestingPieces;
+	/** Payload received from and sent to the peer, to rank it when choking */
+	private long downloadedBytes, uploadedBytes;
+	private long lastBlockReceived;
+	private long snubbedUntil;
+	private Object lock;
+	private NetworkEventLoop eventLoop;
 	
 	private LinkedList<BlockRequest> requestsQueue;
-	private final static int MAX_REQUEST_QUEUE_SIZE = 10;
+	private final static int MAX_REQUEST_QUEUE_SIZE = 256;
 	
 	/**
 	 * Sometimes we don't know the infoHash and torrent until we receive the handshake, for instance,
@@ -70,16 +83,30 @@ public class PeerConnection implements PeerMessageProducer {
 		messageReader.setHandshakeMode();
 		torrentMetadata = Optional.empty();
 		bitField = Optional.empty();
-		downloadStatus = Optional.empty();
+		requestPipeline = new RequestPipeline(BLOCK_SIZE);
 		requestsQueue = new LinkedList<>();
 		seeder = false;
+		readingPiece = false;
+		lastBlockReceived = System.currentTimeMillis();
+		lock = this;
 	}
 	
-	public PeerConnection(Peer peer, SocketChannel channel, TorrentStorage storage, TorrentMetadata torrentMetadata) {
+	/**
+	 * @param lock the lock that guards the state of the torrent. Messages are processed holding it,
+	 * so it must be held as well by anyone touching this connection from a different thread.
+	 */
+	public PeerConnection(Peer peer, SocketChannel channel, TorrentStorage storage, TorrentMetadata torrentMetadata,
+	        DiskIoPool diskIo, Object lock) {
 		this(peer, channel);
 		this.torrentMetadata = Optional.of(torrentMetadata);
-		this.bitField = Optional.of(new BitField(torrentMetadata.getPieceHashes().size()));
+		this.bitField = Optional.of(new BitField(torrentMetadata.getNumPieces()));
 		this.storage = Optional.of(storage);
+		this.diskIo = diskIo;
+		this.lock = lock;
+	}
+	
+	public void setEventLoop(NetworkEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
 	}
 
 	public SocketChannel getChannel() {
@@ -87,28 +114,44 @@ public class PeerConnection implements PeerMessageProducer {
 	}
 	
 	public int doRead() throws MalformedMessageException, IOException {
-		messageReader.readFromChannel(channel).ifPresent(msg -> {
-		    onMessageReceived(msg);
+		return doRead(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param maxBytes maximum number of bytes read from the socket
+	 * @return number of bytes read
+	 */
+	public int doRead(int maxBytes) throws MalformedMessageException, IOException {
+		Optional<RawMessage> msg = messageReader.readFromChannel(channel, maxBytes);
+		if(msg.isPresent()) {
+		    synchronized (lock) {
+		        onMessageReceived(msg.get());
+		    }
 		    messageReader.reset();
 		    if(!handshakeReceived) {
-                messageReader.setHandshakeMode();
-            }
-		});
+		        messageReader.setHandshakeMode();
+		    }
+		}
 		return messageReader.getBytesRead();
 	}
 	
 	/**
-	 * @return true if there is nothing pending to write
+	 * @param maxBytes maximum number of bytes written to the socket
+	 * @return number of bytes written
 	 * @throws MalformedMessageException
 	 * @throws IOException
 	 */
-	public void doWrite() throws MalformedMessageException, IOException {
+	public long doWrite(long maxBytes) throws MalformedMessageException, IOException {
+		long written = 0;
 		if(messageWriter.isBusy()) {
-			messageWriter.writeToChannel(channel);
+			written = messageWriter.writeToChannel(channel, maxBytes);
 		}
 		if(!messageWriter.isBusy()) {
-		    fulfilNextUploadRequest();
+		    synchronized (lock) {
+		        fulfilNextUploadRequest();
+		    }
 		}
+		return written;
 	}
 	
 	public boolean isWriting() {
@@ -129,9 +172,18 @@ public class PeerConnection implements PeerMessageProducer {
 		case NOT_INTERESTED:
 		    notifyMessageListeners(c -> c.onNotInterested());
 			break;
-		case HAVE:
-		    notifyMessageListeners(c -> c.onHave(RawMessage.parseHave(msg)));
+		case HAVE: {
+		    int pieceIndex = RawMessage.parseHave(msg);
+		    if(bitField.isPresent() && (pieceIndex < 0 || pieceIndex >= bitField.get().getSize())) {
+		        throw new TorrentProtocolException("have received for unknown piece "+pieceIndex);
+		    }
+		    if(bitField.isPresent() && bitField.get().isPresent(pieceIndex)) {
+		        logger.debug("Ignoring duplicated have {} from peer {}", pieceIndex, this);
+		    } else {
+		        notifyMessageListeners(c -> c.onHave(pieceIndex));
+		    }
 			break;
+		}
 		case BITFIELD:
 			BitField receivedBitField = RawMessage.parseBitField(msg, bitField.get().getSize());
 			notifyMessageListeners(c -> c.onBitfield(receivedBitField));
@@ -143,7 +195,18 @@ public class PeerConnection implements PeerMessageProducer {
 		}
 		case PIECE: {
 		    Object[] params = RawMessage.parsePiece(msg);
-		    notifyMessageListeners(c -> c.onBlock((Integer)params[0], (Integer)params[1], (ByteBuffer)params[2]));
+		    int index = (Integer)params[0], offset = (Integer)params[1];
+		    ByteBuffer data = (ByteBuffer)params[2];
+		    // any block ends the back-off of a stalled peer
+		    snubbedUntil = 0;
+		    // blocks may still arrive after we gave up on them, they are just ignored
+		    if (requestPipeline.blockReceived(index, offset, data.remaining())) {
+		        downloadedBytes += data.remaining();
+		        lastBlockReceived = System.currentTimeMillis();
+		        notifyMessageListeners(c -> c.onBlock(index, offset, data));
+		    } else {
+		        logger.debug("Discarding block [index={}, offset={}] that wasn't requested from peer {}", index, offset, this);
+		    }
 		    break;
 		}
 		case CANCEL: {
@@ -169,12 +232,19 @@ public class PeerConnection implements PeerMessageProducer {
 		} catch (IOException e) {
 			logger.debug("Error when trying to close connecion with "+this+". "+e.getMessage());
 		}
-		if(isDownloading()) {
-		    downloadStatus.get().piece.unlock();
-		    downloadStatus = Optional.empty();
+		messageWriter.clear();
+		// the event loop might be reading into the buffer right now
+		if (eventLoop != null) {
+		    eventLoop.execute(messageReader::reset);
+		} else {
+		    messageReader.reset();
+		}
+		synchronized (lock) {
+		    requestPipeline.clear();
+		    requestsQueue.clear();
+		    notifyMessageListeners(listener -> listener.onDisconnect());
+		    listeners.clear();
 		}
-		notifyMessageListeners(listener -> listener.onDisconnect());
-		listeners.clear();
 	}
 
 	@Override
@@ -197,6 +267,8 @@ public class PeerConnection implements PeerMessageProducer {
 		@Override
 		public void onChoke() {
 			peerChoking = true;
+			// the peer discards all our pending requests when choking
+			requestPipeline.clear();
 			logger.debug("Peer "+PeerConnection.this+" has choked");
 		}
 		
@@ -250,40 +322,21 @@ public class PeerConnection implements PeerMessageProducer {
 		
 		@Override
 		public void onBlock(int index, int offset, ByteBuffer data) {
-		    if (!downloadStatus.isPresent()) {
-		        logger.error("Got a block that wasn't expecting. Closing connection with peer {}", PeerConnection.this);
-		        kill();
-		    }
-		    Piece piece = downloadStatus.get().piece;
-		    if(piece.getIndex() != index) {
-		        logger.error("Got block of a different piece than expected");
-		        kill();
-		    } else {
-		        logger.debug("Received block [index={}, offset={}, length={}] from peer {}",
-		                index, offset, data.remaining(), PeerConnection.this);
-		        try {
-		            piece.write(offset, data);
-		            if(piece.isComplete()) {
-		                logger.debug("Finished downloading piece {}", index);
-		                downloadStatus = Optional.empty();
-		                piece.unlock();
-		                notifyMessageListeners(listener -> listener.onPiece(piece.getIndex()));
-		            } else {
-		                downloadStatus.ifPresent(status -> status.queueSize--);
-		                scheduleMoreBlockRequests();
-		            }
-		        } catch (IOException e) {
-		            logger.warn("Error writing to file", e);
-		        } catch (TorrentStorageException e) {
-		            logger.error("Error storing piece", e);
-		            kill();
-		        }
-		    }
+		    logger.debug("Received block [index={}, offset={}, length={}] from peer {}",
+		            index, offset, data.remaining(), PeerConnection.this);
+		}
+		
+		@Override
+		public void onCancel(int pieceIndex, int offset, int length) {
+		    requestsQueue.removeIf(r -> r.pieceIndex == pieceIndex && r.offset == offset && r.length == length);
 		}
 		
 		@Override
 		public void onRequest(int pieceIndex, int offset, int length) {
-		    if(requestsQueue.size() >= MAX_REQUEST_QUEUE_SIZE) {
+		    if(amChoking) {
+		        // it may have been sent before our choke arrived
+		        logger.debug("Ignoring request from choked peer {}", PeerConnection.this);
+		    } else if(requestsQueue.size() >= MAX_REQUEST_QUEUE_SIZE) {
 		        logger.info("Peer {} tried to queue too many requests. Disconnecting", PeerConnection.this);
 		        kill();
 		    } else if (length > MAX_BLOCK_REQUEST) {
@@ -295,7 +348,7 @@ public class PeerConnection implements PeerMessageProducer {
 		    } else {
 		        try {
 		            Piece piece = storage.get().piece(pieceIndex);
-		            if (!piece.isComplete()) {
+		            if (!piece.isVerified()) {
 		                logger.info("Peer {} requested a piece that isn't complete yet ({}). Disconnecting", PeerConnection.this, pieceIndex);
 		                kill();
 		            } else if (offset + length > piece.getLength()) {
@@ -327,7 +380,7 @@ public class PeerConnection implements PeerMessageProducer {
 	    if (handshakeSent) {
 	        throw new TorrentProtocolException("Trying to send a handshake but it was already sent");
 	    }
-	    messageWriter.send(RawMessage.createHandshake(
+	    send(RawMessage.createHandshake(
 	            torrentMetadata.get().getInfoHash(), 
 	            ConfigManager.getClientId().getBytes()));
 	    handshakeSent = true;
@@ -335,12 +388,12 @@ public class PeerConnection implements PeerMessageProducer {
 	}
 	
 	public void sendBitField(BitField localBitField) {
-	    messageWriter.send(RawMessage.createBitField(localBitField));
+	    send(RawMessage.createBitField(localBitField));
 	    logger.debug("Bitfield queued to be sent to peer {}", this);
 	}
 	
 	public void sendHave(int pieceIndex) {
-	    messageWriter.send(RawMessage.createHave(pieceIndex));
+	    send(RawMessage.createHave(pieceIndex));
 	    logger.debug("Have {} queued to be sent to peer {}", pieceIndex, this);
 	}
 	
@@ -354,15 +407,34 @@ public class PeerConnection implements PeerMessageProducer {
 	
 	public void setAmInterested(boolean amInterested) {
 	    if(amInterested && !this.amInterested) {
-	        messageWriter.send(RawMessage.createInterested());
+	        // the peer can't be snubbing us before we ask for anything
+	        lastBlockReceived = System.currentTimeMillis();
+	        send(RawMessage.createInterested());
 	        logger.debug("Sending Interested message to peer {}", this);
 	    } else if (!amInterested && this.amInterested) {
-	        messageWriter.send(RawMessage.createNotInterested());
+	        send(RawMessage.createNotInterested());
 	        logger.debug("Sending NotInterested message to peer {}", this);
 	    }
         this.amInterested = amInterested;
     }
 	
+	public int getInterestingPieces() {
+	    return interestingPieces;
+	}
+	
+	/**
+	 * Sets the number of pieces the peer has that we don't, and tells the peer whether we're
+	 * interested accordingly
+	 */
+	public void setInterestingPieces(int interestingPieces) {
+	    this.interestingPieces = interestingPieces;
+	    setAmInterested(interestingPieces > 0);
+	}
+	
+	public void addInterestingPieces(int delta) {
+	    setInterestingPieces(interestingPieces + delta);
+	}
+	
 	public boolean isAmChoking() {
         return amChoking;
     }
@@ -373,60 +445,135 @@ public class PeerConnection implements PeerMessageProducer {
 	
 	public void setAmChoking(boolean amChoking) {
 	    if(amChoking && !this.amChoking) {
-	        messageWriter.send(RawMessage.createChoke());
+	        // the peer knows that its pending requests are discarded
+	        requestsQueue.clear();
+	        send(RawMessage.createChoke());
 	        logger.debug("Sending Choke message to peer {}", this);
 	    } else if(!amChoking && this.amChoking) {
-	        messageWriter.send(RawMessage.createUnchoke());
+	        send(RawMessage.createUnchoke());
 	        logger.debug("Sending Unchoke message to peer {}", this);
 	    }
         this.amChoking = amChoking;
     }
 	
-	private void requestBlock(int pieceIndex, int offset, int length) {
-	    messageWriter.send(RawMessage.createRequest(pieceIndex, offset, length));
+	/**
+	 * Asks the peer for a block. Requests are only tracked here, the caller decides what to request.
+	 */
+	public void requestBlock(int pieceIndex, int offset, int length) {
+	    send(RawMessage.createRequest(pieceIndex, offset, length));
+	    requestPipeline.requestSent(pieceIndex, offset, length);
 	    logger.debug("Sending Request message [index={}, offset={}, length={}] to peer {}", 
 	            pieceIndex, offset, length, this);
 	}
 	
-	public void download(Piece piece) {
-	    logger.debug("Starting download of piece {} from peer {}", piece.getIndex(), this);
-	    if (isDownloading()) {
-	        throw new IllegalStateException("Already downloading a piece, can't start downloading another one");
+	/**
+	 * @return true if there are less requests in flight than needed to keep the link busy
+	 */
+	public boolean canRequestMoreBlocks() {
+	    return requestPipeline.hasRoom();
+	}
+	
+	public boolean isStalled() {
+	    return requestPipeline.isStalled(STALL_TIMEOUT);
+	}
+	
+	/**
+	 * Withdraws a request. If the block arrives anyway it is discarded.
+	 */
+	public void cancelRequest(int pieceIndex, int offset, int length) {
+	    if (requestPipeline.cancel(pieceIndex, offset)) {
+	        send(RawMessage.createCancel(pieceIndex, offset, length));
+	        logger.debug("Sending Cancel message [index={}, offset={}, length={}] to peer {}", 
+	                pieceIndex, offset, length, this);
+	    }
+	}
+	
+	/**
+	 * Withdraws all the requests sent to this peer
+	 */
+	public void cancelRequests() {
+	    for (BlockRequest request : requestPipeline.getRequests()) {
+	        cancelRequest(request.pieceIndex, request.offset, request.length);
+	    }
+	}
+	
+	/**
+	 * Stops requesting blocks to the peer until it sends a block or the given time passes
+	 */
+	public void markSnubbed(long backOff) {
+	    snubbedUntil = System.currentTimeMillis() + backOff;
+	}
+	
+	/**
+	 * @return whether no blocks should be requested to the peer, see {@link #markSnubbed(long)}
+	 */
+	public boolean isSnubbed() {
+	    return System.currentTimeMillis() < snubbedUntil;
+	}
+	
+	/**
+	 * @return whether we want pieces of the peer but it hasn't sent any block for the given time
+	 */
+	public boolean isSnubbing(long timeout, long now) {
+	    return amInterested && now - lastBlockReceived > timeout;
+	}
+	
+	public long getDownloadedBytes() {
+	    return downloadedBytes;
+	}
+	
+	public long getUploadedBytes() {
+	    return uploadedBytes;
+	}
+	
+	/**
+	 * @return download rate from this peer, in bytes per second
+	 */
+	public int getDownloadRate() {
+	    return requestPipeline.getRate();
+	}
+	
+	private void send(RawMessage msg) {
+	    messageWriter.send(msg);
+	    if (eventLoop != null) {
+	        eventLoop.wakeup();
 	    }
-	    piece.lock();
-	    downloadStatus = Optional.of(new DownloadStatus(piece, piece.getCompletion()-1));
-	    scheduleMoreBlockRequests();
-	}
-	
-	private void scheduleMoreBlockRequests() {
-        DownloadStatus status = downloadStatus.get();
-        while(status.queueSize < MAX_BLOCK_QUEUE_SIZE && 
-                status.lastRequestedByte < status.piece.getLength()-1) {
-            requestBlock(
-                    status.piece.getIndex(), 
-                    status.lastRequestedByte+1, 
-                    Math.min(BLOCK_SIZE, status.piece.getLength() - (status.lastRequestedByte+1))
-                    );
-            status.lastRequestedByte += BLOCK_SIZE;
-            status.queueSize++;
-        }
 	}
 	
 	public boolean isDownloading() {
-	    return downloadStatus.isPresent();
+	    return requestPipeline.getOutstanding() > 0;
 	}
 	
+	/**
+	 * Blocks are sent straight from the file to the socket. Pieces wanted by several peers are read
+	 * whole into memory in the disk threads first, so the disk is read only once for all of them.
+	 */
 	private void fulfilNextUploadRequest() {
-	    if (requestsQueue.isEmpty() || !storage.isPresent()) {
+	    if (requestsQueue.isEmpty() || !storage.isPresent() || readingPiece) {
 	        return;
 	    }
-	    BlockRequest block = requestsQueue.removeLast();
-	    try {
-            messageWriter.send(RawMessage.createPiece(block, storage.get().piece(block.pieceIndex)));
-        } catch (IOException e) {
-            logger.error("Error reading piece from disk. Closing connection with peer.", e);
-            kill();
-        }
+	    BlockRequest block = requestsQueue.getLast();
+	    Piece piece = storage.get().piece(block.pieceIndex);
+	    if (piece.isCached() || diskIo == null || !piece.isHot(this)) {
+	        requestsQueue.removeLast();
+	        uploadedBytes += block.length;
+	        send(RawMessage.createPiece(block, piece));
+	        return;
+	    }
+	    readingPiece = true;
+	    diskIo.read(piece, error -> {
+	        synchronized (lock) {
+	            readingPiece = false;
+	            if (error != null) {
+	                logger.debug("Piece {} couldn't be cached, sending it from disk. {}", piece.getIndex(), error.getMessage());
+	            }
+	            // it could have been cancelled in the meantime
+	            if (requestsQueue.remove(block)) {
+	                uploadedBytes += block.length;
+	                send(RawMessage.createPiece(block, piece));
+	            }
+	        }
+	    });
 	}
 	
 	@Override
@@ -434,15 +581,4 @@ public class PeerConnection implements PeerMessageProducer {
 	    return peer.toString() + ", " + (seeder ? "SEEDER" : "LEECHER");
 	}
 	
-	private final static class DownloadStatus {
-	    final Piece piece;
-	    int queueSize;
-	    int lastRequestedByte;
-	    public DownloadStatus(Piece piece, int lastRequestedByte) {
-            this.piece = piece;
-            this.lastRequestedByte = lastRequestedByte;
-            queueSize = 0;
-        }
-	}
-	
 }
@@ -18,41 +18,41 @@ public class PeerRepository {
         connectedPeers = new HashMap<>();
     }
     
-    public Set<Peer> getDisconnectedPeers() {
+    public synchronized Set<Peer> getDisconnectedPeers() {
         return ImmutableSet.copyOf(disconnectedPeers);
     }
     
-    public Collection<PeerConnection> getConnectedPeers() {
+    public synchronized Collection<PeerConnection> getConnectedPeers() {
         return ImmutableList.copyOf(connectedPeers.values());
     }
     
-    public void add(Peer peer) {
+    public synchronized void add(Peer peer) {
         if (!connectedPeers.containsKey(peer)) {
             disconnectedPeers.add(peer);
         }
     }
     
-    public void add(PeerConnection peerConnection) {
+    public synchronized void add(PeerConnection peerConnection) {
         if (!connectedPeers.containsKey(peerConnection.getPeer())) {
             connectedPeers.put(peerConnection.getPeer(), peerConnection);
         }
     }
     
-    public void remove(Peer peer) {
+    public synchronized void remove(Peer peer) {
         disconnectedPeers.remove(peer);
         connectedPeers.remove(peer);
     }
 
-    public void remove(PeerConnection peerConnection) {
+    public synchronized void remove(PeerConnection peerConnection) {
         disconnectedPeers.remove(peerConnection.getPeer());
         connectedPeers.remove(peerConnection.getPeer());
     }
     
-    public int disconnectedPeersCount() {
+    public synchronized int disconnectedPeersCount() {
         return disconnectedPeers.size();
     }
     
-    public int connectedPeersCount() {
+    public synchronized int connectedPeersCount() {
         return connectedPeers.size();
     }
 
@@ -0,0 +1,149 @@
+package es.amanzag.yatorrent.protocol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import es.amanzag.yatorrent.storage.Piece;
+
+/**
+ * Block map of a piece being downloaded. Several peers can request and send different blocks of the
+ * same piece, so a slow peer doesn't delay the whole piece.
+ */
+class PieceDownload {
+
+    private final Piece piece;
+    private final int blockSize;
+    private final int numBlocks;
+    private final boolean[] received;
+    private final List<List<PeerConnection>> requesters;
+    private final Set<Peer> contributors;
+    private int receivedBlocks;
+    private int nextUnrequested;
+    private int pendingWrites;
+    private boolean writeFailed;
+
+    PieceDownload(Piece piece, int blockSize) {
+        this.piece = piece;
+        this.blockSize = blockSize;
+        numBlocks = (piece.getLength() + blockSize - 1) / blockSize;
+        received = new boolean[numBlocks];
+        requesters = new ArrayList<>(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            requesters.add(new ArrayList<>(1));
+        }
+        contributors = new HashSet<>();
+        // a piece resumed from disk already has some data
+        receivedBlocks = piece.getCompletion() / blockSize;
+        for (int i = 0; i < receivedBlocks; i++) {
+            received[i] = true;
+        }
+        nextUnrequested = receivedBlocks;
+    }
+
+    Piece getPiece() {
+        return piece;
+    }
+
+    int getOffset(int block) {
+        return block * blockSize;
+    }
+
+    int getLength(int block) {
+        return Math.min(blockSize, piece.getLength() - getOffset(block));
+    }
+
+    int getBlock(int offset) {
+        return offset / blockSize;
+    }
+
+    /**
+     * @return the first block that nobody is downloading, or -1 if all of them are requested
+     */
+    int nextUnrequestedBlock() {
+        while (nextUnrequested < numBlocks &&
+                (received[nextUnrequested] || !requesters.get(nextUnrequested).isEmpty())) {
+            nextUnrequested++;
+        }
+        return nextUnrequested < numBlocks ? nextUnrequested : -1;
+    }
+
+    /**
+     * In endgame mode blocks are requested to several peers at the same time.
+     * 
+     * @return the missing block with less requesters that hasn't been requested to the given peer
+     * yet, or -1 if there's none
+     */
+    int nextBlockNotRequestedBy(PeerConnection peer) {
+        int best = -1;
+        for (int i = 0; i < numBlocks; i++) {
+            if (!received[i] && !requesters.get(i).contains(peer) &&
+                    (best < 0 || requesters.get(i).size() < requesters.get(best).size())) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    void requested(int block, PeerConnection peer) {
+        requesters.get(block).add(peer);
+    }
+
+    boolean isReceived(int block) {
+        return received[block];
+    }
+
+    /**
+     * @return the other peers the block was requested to
+     */
+    List<PeerConnection> received(int block, PeerConnection from) {
+        received[block] = true;
+        receivedBlocks++;
+        List<PeerConnection> others = new ArrayList<>(requesters.get(block));
+        others.remove(from);
+        requesters.get(block).clear();
+        contributors.add(from.getPeer());
+        return others;
+    }
+
+    /**
+     * The peer won't send the blocks it was asked for, so they can be requested to someone else
+     */
+    void release(PeerConnection peer) {
+        for (int i = 0; i < numBlocks; i++) {
+            if (requesters.get(i).remove(peer) && requesters.get(i).isEmpty()) {
+                nextUnrequested = Math.min(nextUnrequested, i);
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return receivedBlocks == numBlocks;
+    }
+
+    void writeStarted() {
+        pendingWrites++;
+    }
+
+    void writeFinished(boolean success) {
+        pendingWrites--;
+        writeFailed |= !success;
+    }
+
+    /**
+     * @return whether all the blocks have been received and written
+     */
+    boolean isWritten() {
+        return isComplete() && pendingWrites == 0;
+    }
+
+    boolean hasWriteFailed() {
+        return writeFailed;
+    }
+
+    Set<Peer> getContributors() {
+        return contributors;
+    }
+
+}
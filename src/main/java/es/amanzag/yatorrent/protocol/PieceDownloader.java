@@ -1,83 +1,287 @@
 package es.amanzag.yatorrent.protocol;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.eventbus.EventBus;
 
 import es.amanzag.yatorrent.events.DownloadingPeersChangedEvent;
+import es.amanzag.yatorrent.storage.DiskIoPool;
 import es.amanzag.yatorrent.storage.Piece;
 import es.amanzag.yatorrent.storage.TorrentStorage;
+import es.amanzag.yatorrent.storage.TorrentStorageException;
+import es.amanzag.yatorrent.util.ConfigManager;
 
+/**
+ * Decides which blocks are requested to each peer. Pieces are downloaded block by block, and the
+ * blocks of a piece can come from different peers. Peers fill their pipeline with the pieces
+ * already started before a new piece is picked, and the blocks requested to peers that stop
+ * sending data are requested again to other peers. Those peers get no requests for a while, unless
+ * they send a block in the meantime.
+ * <p>
+ * When there are no pieces left to start and all the blocks are requested, the download enters
+ * endgame mode: the missing blocks are requested to every peer that has them, and the rest of the
+ * requests are cancelled as soon as one of them arrives.
+ * <p>
+ * Blocks are written in the {@link DiskIoPool}, and a piece is only handed over for verification
+ * once all its blocks are on the storage. Until then the piece is still one of the current
+ * downloads, so it can't be started again.
+ */
 public class PieceDownloader {
-    
+
     private final static Logger logger = LoggerFactory.getLogger(PieceDownloader.class);
-    
+
+    /** Time during which no blocks are requested to a stalled peer, unless it sends one */
+    private final static long STALL_BACK_OFF = 30000;
+
     private PeerRepository peerRepository;
-    private BitField localBitField;
     private TorrentStorage storage;
-    private BiMap<PeerConnection, Integer> currentDownloads;
+    private DiskIoPool diskIo;
+    private Object torrentLock;
+    private PiecePicker piecePicker;
+    private Map<Integer, PieceDownload> currentDownloads;
+    private Set<PeerConnection> trackedPeers;
+    private BiConsumer<Piece, Set<Peer>> onPieceDownloaded;
+    private BitField allPieces;
     private EventBus eventBus;
-    
-    public PieceDownloader(PeerRepository peerRepository, BitField localBitField, TorrentStorage storage, EventBus eventBus) {
+    private int downloadingPeers;
+
+    /**
+     * @param onPieceDownloaded receives every piece that gets all its data, along with the peers
+     * that sent it
+     * @param torrentLock the lock that guards the state of the torrent, taken when the disk is done
+     * with a block
+     */
+    public PieceDownloader(PeerRepository peerRepository, BitField localBitField, TorrentStorage storage, DiskIoPool diskIo,
+            EventBus eventBus, BiConsumer<Piece, Set<Peer>> onPieceDownloaded, Object torrentLock) {
         this.peerRepository = peerRepository;
-        this.localBitField = localBitField;
         this.storage = storage;
+        this.diskIo = diskIo;
+        this.torrentLock = torrentLock;
+        piecePicker = PiecePicker.create(
+                PiecePicker.Policy.valueOf(ConfigManager.getPiecePickerPolicy().toUpperCase()),
+                localBitField);
         this.eventBus = eventBus;
-        currentDownloads = HashBiMap.create();
+        this.onPieceDownloaded = onPieceDownloaded;
+        allPieces = new BitField(localBitField.getSize());
+        for (int i = 0; i < allPieces.getSize(); i++) {
+            allPieces.setPresent(i, true);
+        }
+        currentDownloads = new LinkedHashMap<>();
+        trackedPeers = new HashSet<>();
+        downloadingPeers = 0;
     }
-    
+
     public void scheduleDownloads() {
-        BitField piecesNeeded = localBitField.reverse();
+        for (PeerConnection peerConnection : peerRepository.getConnectedPeers()) {
+            if (peerConnection.isStalled()) {
+                logger.debug("Peer {} stalled, its blocks will be requested to other peers", peerConnection);
+                peerConnection.cancelRequests();
+                peerConnection.markSnubbed(STALL_BACK_OFF);
+                releaseBlocks(peerConnection);
+            }
+        }
         peerRepository.getConnectedPeers().stream()
-            .filter(peer -> 
-                !peer.isPeerChoking() && !currentDownloads.containsKey(peer)
-            )
-            .forEach(peerConnection -> {
-                findDownloadablePiece(peerConnection, piecesNeeded).ifPresent(pieceIndex -> {
-                    Piece newDownload = storage.piece(pieceIndex);
-                    if(newDownload.isComplete()) {
-                        logger.warn("Was going to download piece {} but it is already downloaded", pieceIndex);
-                    } else {
-                        PeerMessageListener listener = new PeerMessageListener() {
-                            @Override public void onDisconnect() {
-                                currentDownloads.remove(peerConnection);
-                                publishDownloadingPeersChangedEvent();
-                            }
-                            @Override public void onPiece(int receivedPieceIndex) {
-                                currentDownloads.remove(peerConnection);
-                                publishDownloadingPeersChangedEvent();
-                                // FIXME
-//                            peerConnection.removeMessageListener(listener);
-                            }
-                        };
-                        peerConnection.addMessageListener(listener);
-                        peerConnection.download(newDownload);
-                        currentDownloads.put(peerConnection, pieceIndex);
-                        publishDownloadingPeersChangedEvent();
-                    }
-                });
-            });
+            .filter(peer -> !peer.isPeerChoking())
+            .forEach(this::requestBlocks);
+        publishDownloadingPeersChangedEvent();
+    }
+
+    /**
+     * Starts following the pieces that a new peer has and the blocks downloaded from it
+     */
+    public void addPeer(PeerConnection peerConnection) {
+        if (!trackedPeers.add(peerConnection)) {
+            return;
+        }
+        peerConnection.addMessageListener(new PeerMessageListener() {
+            @Override public void onBitfield(BitField bitField) {
+                piecePicker.addAvailability(bitField);
+            }
+            @Override public void onHave(int pieceIndex) {
+                piecePicker.addAvailability(pieceIndex);
+            }
+            @Override public void onDisconnect() {
+                trackedPeers.remove(peerConnection);
+                piecePicker.removeAvailability(peerConnection.getBitField());
+                releaseBlocks(peerConnection);
+            }
+            @Override public void onChoke() {
+                releaseBlocks(peerConnection);
+            }
+            @Override public void onUnchoke() {
+                requestBlocks(peerConnection);
+            }
+            @Override public void onBlock(int pieceIndex, int offset, ByteBuffer data) {
+                onBlockReceived(peerConnection, pieceIndex, offset, data);
+            }
+        });
+    }
+
+    /**
+     * Keeps requesting blocks to the peer until its pipeline is full
+     */
+    private void requestBlocks(PeerConnection peerConnection) {
+        if (peerConnection.isSnubbed()) {
+            return;
+        }
+        while (!peerConnection.isPeerChoking() && peerConnection.canRequestMoreBlocks()) {
+            Optional<PieceDownload> download = findStartedPiece(peerConnection);
+            if (!download.isPresent()) {
+                download = startNewPiece(peerConnection);
+            }
+            if (!download.isPresent()) {
+                requestEndgameBlock(peerConnection);
+                return;
+            }
+            PieceDownload pieceDownload = download.get();
+            request(pieceDownload, pieceDownload.nextUnrequestedBlock(), peerConnection);
+        }
+    }
+
+    private void request(PieceDownload download, int block, PeerConnection peerConnection) {
+        peerConnection.requestBlock(download.getPiece().getIndex(),
+                download.getOffset(block), download.getLength(block));
+        download.requested(block, peerConnection);
+    }
+
+    private void requestEndgameBlock(PeerConnection peerConnection) {
+        if (!isEndgame()) {
+            return;
+        }
+        BitField peerBitField = peerConnection.getBitField();
+        for (PieceDownload download : currentDownloads.values()) {
+            if (!peerBitField.isPresent(download.getPiece().getIndex())) {
+                continue;
+            }
+            while (peerConnection.canRequestMoreBlocks()) {
+                int block = download.nextBlockNotRequestedBy(peerConnection);
+                if (block < 0) {
+                    break;
+                }
+                request(download, block, peerConnection);
+            }
+        }
+    }
+
+    private boolean isEndgame() {
+        return !currentDownloads.isEmpty() &&
+                currentDownloads.values().stream().allMatch(d -> d.nextUnrequestedBlock() < 0) &&
+                !piecePicker.pick(allPieces, i -> !storage.piece(i).isComplete()).isPresent();
     }
-    
-    private Optional<Integer> findDownloadablePiece(PeerConnection peerConnection, BitField piecesNeeded) {
-        BitField peerPieces = piecesNeeded.intersection(peerConnection.getBitField());
-        for(int i=0; i<peerPieces.getSize(); i++) {
-            if(peerPieces.isPresent(i) && !currentDownloads.inverse().containsKey(i)) {
-                return Optional.of(i);
+
+    private Optional<PieceDownload> findStartedPiece(PeerConnection peerConnection) {
+        BitField peerBitField = peerConnection.getBitField();
+        for (PieceDownload download : currentDownloads.values()) {
+            if (peerBitField.isPresent(download.getPiece().getIndex()) && download.nextUnrequestedBlock() >= 0) {
+                return Optional.of(download);
             }
         }
         return Optional.empty();
     }
-    
+
+    private Optional<PieceDownload> startNewPiece(PeerConnection peerConnection) {
+        // complete pieces that aren't verified yet are still needed, but can't be downloaded
+        Optional<Integer> pieceIndex = piecePicker.pick(peerConnection.getBitField(),
+                i -> !storage.piece(i).isComplete());
+        if (!pieceIndex.isPresent()) {
+            return Optional.empty();
+        }
+        logger.debug("Starting download of piece {}", pieceIndex.get());
+        Piece piece = storage.piece(pieceIndex.get());
+        piece.lock();
+        piecePicker.setNeeded(pieceIndex.get(), false);
+        PieceDownload download = new PieceDownload(piece, PeerConnection.BLOCK_SIZE);
+        currentDownloads.put(pieceIndex.get(), download);
+        return Optional.of(download);
+    }
+
+    private void onBlockReceived(PeerConnection peerConnection, int pieceIndex, int offset, ByteBuffer data) {
+        PieceDownload download = currentDownloads.get(pieceIndex);
+        if (download == null || download.isReceived(download.getBlock(offset))) {
+            logger.debug("Block [index={}, offset={}] from peer {} was already received", pieceIndex, offset, peerConnection);
+        } else {
+            Piece piece = download.getPiece();
+            int length = data.remaining();
+            download.writeStarted();
+            diskIo.write(piece, offset, data, error -> {
+                synchronized (torrentLock) {
+                    onBlockWritten(download, peerConnection, error);
+                }
+            });
+            List<PeerConnection> duplicates = download.received(download.getBlock(offset), peerConnection);
+            for (PeerConnection duplicate : duplicates) {
+                duplicate.cancelRequest(pieceIndex, offset, length);
+            }
+            if (download.isComplete()) {
+                // it stays among the current downloads until the disk is done with it
+                logger.debug("Finished downloading piece {}", pieceIndex);
+            }
+        }
+        requestBlocks(peerConnection);
+    }
+
+    private void onBlockWritten(PieceDownload download, PeerConnection peerConnection, Exception error) {
+        Piece piece = download.getPiece();
+        if (error instanceof TorrentStorageException) {
+            logger.error("Error storing piece", error);
+            peerConnection.kill();
+        } else if (error != null) {
+            logger.warn("Error writing to file", error);
+        }
+        download.writeFinished(error == null);
+        if (!download.isWritten()) {
+            return;
+        }
+        currentDownloads.remove(piece.getIndex());
+        piece.unlock();
+        if (download.hasWriteFailed()) {
+            logger.warn("Piece {} couldn't be stored, it will be downloaded again", piece.getIndex());
+            piece.reset();
+            piecePicker.setNeeded(piece.getIndex(), true);
+        } else {
+            onPieceDownloaded.accept(piece, download.getContributors());
+        }
+    }
+
+    private void releaseBlocks(PeerConnection peerConnection) {
+        for (PieceDownload download : currentDownloads.values()) {
+            download.release(peerConnection);
+        }
+    }
+
+    public void onPieceVerified(int pieceIndex) {
+        piecePicker.setNeeded(pieceIndex, false);
+    }
+
+    /**
+     * @see PiecePicker#setPriority(int, int)
+     */
+    public void setPriority(int pieceIndex, int priority) {
+        piecePicker.setPriority(pieceIndex, priority);
+    }
+
+    public void onCorruptPiece(int pieceIndex) {
+        piecePicker.setNeeded(pieceIndex, true);
+    }
+
     private void publishDownloadingPeersChangedEvent() {
-        DownloadingPeersChangedEvent e = new DownloadingPeersChangedEvent();
-        e.downloadingPeers = currentDownloads.size();
-        eventBus.post(e);
+        int count = (int) trackedPeers.stream().filter(PeerConnection::isDownloading).count();
+        if (count != downloadingPeers) {
+            downloadingPeers = count;
+            DownloadingPeersChangedEvent e = new DownloadingPeersChangedEvent();
+            e.downloadingPeers = count;
+            eventBus.post(e);
+        }
     }
 
 }
@@ -0,0 +1,47 @@
+package es.amanzag.yatorrent.protocol;
+
+import java.util.Optional;
+import java.util.function.IntPredicate;
+
+/**
+ * Decides which piece should be downloaded next from a peer. Implementations keep track of how
+ * many connected peers have each piece, so they must be notified of every bitfield, have and
+ * disconnection, and of the pieces that are no longer needed.
+ */
+public interface PiecePicker {
+    
+    public static enum Policy { RAREST_FIRST, SEQUENTIAL, PRIORITY }
+    
+    void addAvailability(BitField peerPieces);
+    void addAvailability(int pieceIndex);
+    void removeAvailability(BitField peerPieces);
+    
+    /**
+     * @param needed false once the download of the piece starts, true if it has to be downloaded again
+     */
+    void setNeeded(int pieceIndex, boolean needed);
+    
+    /**
+     * Pieces with a higher priority are picked first. Only the priority policy takes it into account.
+     */
+    void setPriority(int pieceIndex, int priority);
+    
+    /**
+     * @param accept filter for pieces that can't be started right now, for instance because they're
+     * complete and waiting to be verified
+     * @return the best piece among the ones that the peer has, if any
+     */
+    Optional<Integer> pick(BitField peerPieces, IntPredicate accept);
+    
+    public static PiecePicker create(Policy policy, BitField localBitField) {
+        switch (policy) {
+        case SEQUENTIAL:
+            return new SequentialPiecePicker(localBitField);
+        case PRIORITY:
+            return new PriorityPiecePicker(localBitField);
+        default:
+            return new RarestFirstPiecePicker(localBitField);
+        }
+    }
+
+}
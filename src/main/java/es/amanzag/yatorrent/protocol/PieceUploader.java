@@ -1,25 +1,149 @@
 package es.amanzag.yatorrent.protocol;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import es.amanzag.yatorrent.util.ConfigManager;
+
+/**
+ * Decides which peers are allowed to download from us, following the tit-for-tat choking
+ * algorithm. Every round the interested peers are ranked by how fast they sent us data during the
+ * last round, or by how fast we sent them data once we are seeding, and only the best ones get
+ * one of the upload slots. One more peer is unchoked optimistically and rotated every few rounds,
+ * so new peers get a chance to show what they can do.
+ * <p>
+ * Peers that haven't sent us anything for a while although we want their pieces are snubbing us,
+ * they can only be unchoked optimistically.
+ */
 public class PieceUploader {
-    
+
     private final static Logger logger = LoggerFactory.getLogger(PieceUploader.class);
-    
+
+    private final static long ROUND_INTERVAL = 10000;
+    private final static long OPTIMISTIC_UNCHOKE_INTERVAL = 3 * ROUND_INTERVAL;
+    private final static long SNUB_TIMEOUT = 60000;
+
     private PeerRepository peerRepository;
-    
-    public PieceUploader(PeerRepository peerRepository) {
+    private BitField localBitField;
+    private int slots;
+    private Random random;
+    private long lastRound;
+    private long lastOptimisticUnchoke;
+    private PeerConnection optimisticUnchoke;
+    /** Bytes transferred with every peer when the last round started */
+    private Map<PeerConnection, Long> lastTransferred;
+    private Set<PeerConnection> unchoked;
+
+    public PieceUploader(PeerRepository peerRepository, BitField localBitField) {
         this.peerRepository = peerRepository;
+        this.localBitField = localBitField;
+        slots = ConfigManager.getUploadSlots();
+        random = new Random();
+        lastRound = 0;
+        lastOptimisticUnchoke = 0;
+        lastTransferred = new HashMap<>();
+        unchoked = new HashSet<>();
     }
 
+    /**
+     * Runs a new round when the previous one is over. In the meantime, the slots left free by peers
+     * that disconnected are given to the peers that become interested.
+     */
     public void scheduleUploads() {
-        peerRepository.getConnectedPeers().stream()
-            .filter(peer -> peer.isPeerInterested() && peer.isAmChoking())
-            .forEach(peer -> {
-                logger.debug("Unchoking peer {}", peer);
+        scheduleUploads(System.currentTimeMillis());
+    }
+
+    void scheduleUploads(long now) {
+        Collection<PeerConnection> peers = peerRepository.getConnectedPeers();
+        unchoked.retainAll(peers);
+        if (optimisticUnchoke != null && !peers.contains(optimisticUnchoke)) {
+            optimisticUnchoke = null;
+        }
+        if (now - lastRound >= ROUND_INTERVAL) {
+            runRound(peers, now);
+        } else {
+            fillFreeSlots(peers, now);
+        }
+    }
+
+    private void fillFreeSlots(Collection<PeerConnection> peers, long now) {
+        boolean seeding = !localBitField.hasBitsUnset();
+        for (PeerConnection peer : peers) {
+            if (unchoked.size() >= slots) {
+                break;
+            }
+            if (peer.isPeerInterested() && peer.isAmChoking() && (seeding || !peer.isSnubbing(SNUB_TIMEOUT, now))) {
+                logger.debug("Unchoking peer {} in a free slot", peer);
+                unchoked.add(peer);
                 peer.setAmChoking(false);
-            });
+            }
+        }
+        if (optimisticUnchoke == null) {
+            optimisticUnchoke = pickOptimisticUnchoke(peers);
+            if (optimisticUnchoke != null) {
+                optimisticUnchoke.setAmChoking(false);
+            }
+        }
+    }
+
+    private void runRound(Collection<PeerConnection> peers, long now) {
+        boolean seeding = !localBitField.hasBitsUnset();
+        long elapsed = Math.max(1, now - lastRound);
+        Map<PeerConnection, Long> rates = new HashMap<>();
+        Map<PeerConnection, Long> transferred = new HashMap<>();
+        for (PeerConnection peer : peers) {
+            long total = seeding ? peer.getUploadedBytes() : peer.getDownloadedBytes();
+            transferred.put(peer, total);
+            rates.put(peer, (total - lastTransferred.getOrDefault(peer, total)) * 1000 / elapsed);
+        }
+        lastTransferred = transferred;
+        lastRound = now;
+
+        List<PeerConnection> candidates = peers.stream()
+                .filter(peer -> peer.isPeerInterested() && (seeding || !peer.isSnubbing(SNUB_TIMEOUT, now)))
+                .sorted(Comparator.comparing(rates::get).reversed())
+                .collect(Collectors.toList());
+        unchoked = new HashSet<>(candidates.subList(0, Math.min(slots, candidates.size())));
+
+        if (now - lastOptimisticUnchoke >= OPTIMISTIC_UNCHOKE_INTERVAL || optimisticUnchoke == null
+                || unchoked.contains(optimisticUnchoke) || !optimisticUnchoke.isPeerInterested()) {
+            optimisticUnchoke = pickOptimisticUnchoke(peers);
+            lastOptimisticUnchoke = now;
+        }
+
+        for (PeerConnection peer : peers) {
+            boolean choke = !unchoked.contains(peer) && peer != optimisticUnchoke;
+            if (choke != peer.isAmChoking()) {
+                logger.debug("{} peer {}, rate {} B/s", choke ? "Choking" : "Unchoking", peer, rates.get(peer));
+                peer.setAmChoking(choke);
+            }
+        }
+    }
+
+    private PeerConnection pickOptimisticUnchoke(Collection<PeerConnection> peers) {
+        List<PeerConnection> candidates = new ArrayList<>();
+        for (PeerConnection peer : peers) {
+            if (peer.isPeerInterested() && !unchoked.contains(peer)) {
+                candidates.add(peer);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        PeerConnection picked = candidates.get(random.nextInt(candidates.size()));
+        logger.debug("Optimistic unchoke for peer {}", picked);
+        return picked;
     }
 
 }
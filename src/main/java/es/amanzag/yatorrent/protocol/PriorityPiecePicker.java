@@ -0,0 +1,30 @@
+package es.amanzag.yatorrent.protocol;
+
+/**
+ * Strict priority: a piece is never picked while a piece with a higher priority can be
+ * downloaded from the same peer. Pieces with the same priority are picked rarest first.
+ */
+public class PriorityPiecePicker extends OrderedPiecePicker {
+    
+    private final int[] priorities;
+
+    public PriorityPiecePicker(BitField localBitField) {
+        super(localBitField);
+        priorities = new int[localBitField.getSize()];
+        addNeededPieces(localBitField);
+    }
+    
+    @Override
+    public void setPriority(int pieceIndex, int priority) {
+        reorder(pieceIndex, () -> priorities[pieceIndex] = priority);
+    }
+    
+    /**
+     * Higher priorities in the high bits, so they go first, and the availability in the low ones
+     */
+    @Override
+    protected long level(int pieceIndex) {
+        return ((long) -priorities[pieceIndex] << 32) + availability[pieceIndex];
+    }
+
+}
@@ -0,0 +1,19 @@
+package es.amanzag.yatorrent.protocol;
+
+/**
+ * Picks first the pieces that fewer peers have, so they don't disappear from the swarm. Pieces
+ * equally available are picked at random.
+ */
+public class RarestFirstPiecePicker extends OrderedPiecePicker {
+    
+    public RarestFirstPiecePicker(BitField localBitField) {
+        super(localBitField);
+        addNeededPieces(localBitField);
+    }
+    
+    @Override
+    protected long level(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+}
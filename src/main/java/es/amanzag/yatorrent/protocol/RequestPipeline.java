@@ -0,0 +1,154 @@
+package es.amanzag.yatorrent.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the block requests sent to a peer that haven't been answered yet, and estimates
+ * how many of them should be outstanding to keep the link with the peer busy.
+ * <p>
+ * The depth of the queue is the bandwidth-delay product of the peer, using the download rate
+ * measured from it and its round trip time plus a safety margin. The margin makes the queue grow
+ * while the queue itself is what limits the rate, until the link is saturated.
+ */
+class RequestPipeline {
+
+    final static int MIN_DEPTH = 4;
+    /** Same as the default reqq of most clients */
+    final static int MAX_DEPTH = 250;
+
+    private final static long RATE_WINDOW = 1000;
+    private final static long QUEUE_MARGIN = 1000;
+
+    private final int blockSize;
+    private final LongSupplier clock;
+    private Map<Long, Outstanding> outstanding;
+    private double rate; // bytes per millisecond
+    private double roundTripTime; // milliseconds
+    private long windowStart;
+    private long windowBytes;
+    private int depth;
+    private long lastProgress;
+
+    RequestPipeline(int blockSize) {
+        this(blockSize, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock current time in milliseconds
+     */
+    RequestPipeline(int blockSize, LongSupplier clock) {
+        this.blockSize = blockSize;
+        this.clock = clock;
+        outstanding = new HashMap<>();
+        rate = 0;
+        roundTripTime = 0;
+        windowStart = clock.getAsLong();
+        windowBytes = 0;
+        depth = MIN_DEPTH;
+    }
+
+    void requestSent(int pieceIndex, int offset, int length) {
+        // only requests sent with nothing else in flight measure the round trip time without queueing
+        long timestamp = -1;
+        if (outstanding.isEmpty()) {
+            timestamp = clock.getAsLong();
+            lastProgress = timestamp;
+        }
+        outstanding.put(key(pieceIndex, offset), new Outstanding(new BlockRequest(pieceIndex, offset, length), timestamp));
+    }
+
+    /**
+     * @return false if the block wasn't requested
+     */
+    boolean blockReceived(int pieceIndex, int offset, int length) {
+        Outstanding request = outstanding.remove(key(pieceIndex, offset));
+        if (request == null) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        lastProgress = now;
+        if (request.sentAt >= 0) {
+            long sample = now - request.sentAt;
+            roundTripTime = roundTripTime == 0 ? sample : 0.8 * roundTripTime + 0.2 * sample;
+        }
+        windowBytes += length;
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW) {
+            double sample = (double) windowBytes / elapsed;
+            rate = rate == 0 ? sample : (rate + sample) / 2;
+            windowStart = now;
+            windowBytes = 0;
+            updateDepth();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the block wasn't requested
+     */
+    boolean cancel(int pieceIndex, int offset) {
+        return outstanding.remove(key(pieceIndex, offset)) != null;
+    }
+
+    List<BlockRequest> getRequests() {
+        List<BlockRequest> requests = new ArrayList<>(outstanding.size());
+        for (Outstanding request : outstanding.values()) {
+            requests.add(request.request);
+        }
+        return requests;
+    }
+
+    void clear() {
+        outstanding.clear();
+    }
+
+    boolean hasRoom() {
+        return outstanding.size() < depth;
+    }
+
+    /**
+     * @return true if there are requests in flight but no block has been received for the given time
+     */
+    boolean isStalled(long timeout) {
+        return !outstanding.isEmpty() && clock.getAsLong() - lastProgress > timeout;
+    }
+
+    int getOutstanding() {
+        return outstanding.size();
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return download rate in bytes per second
+     */
+    int getRate() {
+        return (int) (rate * 1000);
+    }
+
+    private void updateDepth() {
+        double bandwidthDelayProduct = rate * (roundTripTime + QUEUE_MARGIN);
+        int blocks = (int) Math.ceil(bandwidthDelayProduct / blockSize);
+        depth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, blocks));
+    }
+
+    private static long key(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private final static class Outstanding {
+        final BlockRequest request;
+        final long sentAt;
+        Outstanding(BlockRequest request, long sentAt) {
+            this.request = request;
+            this.sentAt = sentAt;
+        }
+    }
+
+}
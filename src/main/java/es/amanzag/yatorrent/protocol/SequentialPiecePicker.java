@@ -0,0 +1,26 @@
+package es.amanzag.yatorrent.protocol;
+
+/**
+ * Picks pieces in order, useful to start using the data before the download finishes.
+ */
+public class SequentialPiecePicker extends OrderedPiecePicker {
+
+    public SequentialPiecePicker(BitField localBitField) {
+        super(localBitField);
+        addNeededPieces(localBitField);
+    }
+
+    /**
+     * All the pieces are in the same level, searched from the beginning
+     */
+    @Override
+    protected long level(int pieceIndex) {
+        return 0;
+    }
+    
+    @Override
+    protected int searchStart() {
+        return 0;
+    }
+
+}
@@ -6,6 +6,10 @@ package es.amanzag.yatorrent.protocol;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +21,7 @@ import es.amanzag.yatorrent.metafile.MalformedMetadataException;
 import es.amanzag.yatorrent.metafile.TorrentMetadata;
 import es.amanzag.yatorrent.protocol.io.TorrentNetworkManager;
 import es.amanzag.yatorrent.protocol.tracker.TrackerManager;
+import es.amanzag.yatorrent.storage.Piece;
 import es.amanzag.yatorrent.storage.TorrentStorage;
 import es.amanzag.yatorrent.util.ConfigManager;
 
@@ -30,7 +35,6 @@ public class TorrentDownload implements PeerConnectionListener {
 	
 	private TorrentMetadata metadata;
 	private TrackerManager tracker;
-	private boolean start, stop, destroy;
 	private State state;
 	private PeerRepository peerRepository;
 	private TorrentStorage storage;
@@ -38,113 +42,81 @@ public class TorrentDownload implements PeerConnectionListener {
 	private BitField localBitField;
 	private PieceDownloader pieceDownloader;
 	private PieceUploader pieceUploader;
-	private Thread torrentThread;
+	private TorrentEngine engine;
+	private ScheduledFuture<?> scheduledTasks;
 	private EventBus eventBus;
+	private boolean committing;
+	private boolean syncing;
+	private long lastSync;
+	private int[] filePriorities;
 	
 	private enum State { INITIALIZED, STARTED, STOPPED, DESTROYED };
 	
-	public TorrentDownload(File torrentFile, EventBus eventBus) throws IOException, MalformedMetadataException {
+	public TorrentDownload(File torrentFile, EventBus eventBus, TorrentEngine engine) throws IOException, MalformedMetadataException {
 		metadata = TorrentMetadata.createFromFile(torrentFile);
-		storage = new TorrentStorage(metadata, torrentFile, eventBus);
+		storage = new TorrentStorage(metadata, torrentFile, eventBus, engine.getReadCache());
 		tracker = new TrackerManager(metadata);
 		peerRepository = new PeerRepository();
 		tracker.addTrackerEventListener(this::onNewPeerInTheNetwork);
-		networkManager = new TorrentNetworkManager(metadata, storage, eventBus);
+		this.engine = engine;
+		networkManager = new TorrentNetworkManager(metadata, storage, eventBus, engine.getEventLoops(), engine.getDiskIo(),
+		        engine.getDownloadLimiter(), engine.getUploadLimiter(), this);
 		networkManager.addPeerConnectionListener(this);
-		start = false;
-		stop = false;
-		destroy = false;
 		state = State.INITIALIZED;
+		if(ConfigManager.isRecheckOnStartup()) {
+			storage.recheck(engine.getRecheckPool());
+		}
 		localBitField = storage.asBitField();
 		this.eventBus = eventBus;
-		pieceDownloader = new PieceDownloader(peerRepository, localBitField, storage, eventBus);
-		pieceUploader = new PieceUploader(peerRepository);
+		pieceDownloader = new PieceDownloader(peerRepository, localBitField, storage, engine.getDiskIo(), eventBus,
+		        this::verifyPiece, this);
+		pieceUploader = new PieceUploader(peerRepository, localBitField);
+		filePriorities = new int[metadata.getFiles().size()];
+		logger.debug("Torrent "+metadata.getName()+" initialized");
 		
-		torrentThread = new Thread(this::run, metadata.getName());
-		torrentThread.start();
+		tracker.start();
 	}
 	
-	public Thread getTorrentThread() {
-        return torrentThread;
-    }
-	
-	public void run() {
-		tracker.start();
-		// state machine
+	/**
+	 * Periodic work of the torrent. It runs in the shared scheduler, never in the network threads.
+	 */
+	private synchronized void runScheduledTasks() {
+		if(state != State.STARTED) {
+			return;
+		}
 		try {
-			while (state != State.DESTROYED) {
-				switch(state) {
-				case INITIALIZED:
-					logger.debug("Torrent "+metadata.getName()+" initialized");
-					synchronized (this) {
-						if(!start) wait();
-						if(start) {
-							// TODO sacar fuera del synchronized lo que pueda tardar
-							doStart();
-						}
-					}
-					break;
-				case STOPPED:
-					synchronized (this) {
-						if(!start && !destroy) wait();
-						if(start) {
-							doStart();
-						}
-						if (destroy) {
-							doDestroy();
-						}
-					}
-					break;
-				case STARTED:
-					synchronized (this) {
-						if(stop) doStop();
-						if(destroy) {
-							doStop();
-							doDestroy();
-						}
-					}
-					checkCompletionStatus();
-					makeNewConnections();
-					if(stop || destroy || state != State.STARTED) break;
-					networkManager.processSocketEvents();
-					if(stop || destroy || state != State.STARTED) break;
-			        pieceDownloader.scheduleDownloads();
-			        pieceUploader.scheduleUploads();
-					break;
-				case DESTROYED:
-					break;
-				}
-			}
-		} catch (InterruptedException e) {
-			logger.warn(e.getMessage());
-			doStop();
-			doDestroy();
-		} catch (IOException e) {
-			logger.error("Unrecoverable IO exception in torrent "+metadata.getName()+". "+e.getMessage(), e);
-			doStop();
-			doDestroy();
+			checkCompletionStatus();
+			saveProgress();
+			makeNewConnections();
+			pieceDownloader.scheduleDownloads();
+			pieceUploader.scheduleUploads();
+			networkManager.reportBandwidth();
+			storage.reportCompletion();
+			storage.reportCacheStats();
+		} catch (RuntimeException e) {
+			logger.error("Unexpected error scheduling work for torrent "+metadata.getName(), e);
 		}
-		
-	}		
+	}
 	
-	protected void doStart() throws IOException {
+	protected void doStart() {
 		networkManager.start();
+		scheduledTasks = engine.getScheduler().scheduleWithFixedDelay(
+				this::runScheduledTasks, 0, ConfigManager.getSchedulingInterval(), TimeUnit.MILLISECONDS);
 		state = State.STARTED;
-		start = false;
 		logger.debug("Torrent "+metadata.getName()+" started");
 	}
 	
 	protected void doStop() {
+		scheduledTasks.cancel(false);
 		for (PeerConnection connectedPeer : new ArrayList<>(peerRepository.getConnectedPeers())) {
 			connectedPeer.kill();
 		}
 		try {
 			networkManager.stop();
 		} catch (IOException e) {
-			logger.warn("Error closing socket selector for "+metadata.getName());
+			logger.warn("Error closing pending connections for "+metadata.getName());
 		}
 		state = State.STOPPED;
-		stop = false;
 		try {
             storage.forceSave();
         } catch (IOException e) {
@@ -155,28 +127,59 @@ public class TorrentDownload implements PeerConnectionListener {
 	
 	protected void doDestroy() {
 		state = State.DESTROYED;
-		destroy = false;
 		logger.debug("Torrent "+metadata.getName()+" destroyed");
 	}
 	
-	public void start() {
-		synchronized (this) {
-			start = true;
-			this.notify();
+	public synchronized void start() {
+		if(state == State.INITIALIZED || state == State.STOPPED) {
+			doStart();
+		}
+	}
+	
+	public synchronized void stop() {
+		if(state == State.STARTED) {
+			doStop();
 		}
 	}
 	
-	public void stop() {
-		synchronized (this) {
-			stop = true;
-			this.notify();
+	public synchronized void destroy() {
+		if(state == State.STARTED) {
+			doStop();
+		}
+		if(state != State.DESTROYED) {
+			doDestroy();
 		}
 	}
 	
-	public void destroy() {
-		synchronized (this) {
-			destroy = true;
-			this.notify();
+	/**
+	 * Sets the priority of the pieces of a file, which is taken into account when the piece picker
+	 * policy is priority. The pieces shared with other files get the highest priority among them.
+	 * @param fileIndex index in {@link TorrentMetadata#getFiles()}
+	 */
+	public synchronized void setFilePriority(int fileIndex, int priority) {
+		TorrentMetadata.ContainedFile file = metadata.getFiles().get(fileIndex);
+		filePriorities[fileIndex] = priority;
+		if(file.getLength() == 0) {
+			return;
+		}
+		List<TorrentMetadata.ContainedFile> files = metadata.getFiles();
+		long pieceLength = metadata.getPieceLength();
+		int firstPiece = (int) (file.getOffset() / pieceLength);
+		int lastPiece = (int) ((file.getOffset() + file.getLength() - 1) / pieceLength);
+		for(int piece = firstPiece; piece <= lastPiece; piece++) {
+			long start = piece * pieceLength;
+			long end = start + pieceLength;
+			int piecePriority = priority;
+			// only the first and the last pieces can be shared with the neighbouring files
+			for(int i = fileIndex - 1; i >= 0 && files.get(i).getOffset() + files.get(i).getLength() > start; i--) {
+				piecePriority = Math.max(piecePriority, filePriorities[i]);
+			}
+			for(int i = fileIndex + 1; i < files.size() && files.get(i).getOffset() < end; i++) {
+				if(files.get(i).getLength() > 0) {
+					piecePriority = Math.max(piecePriority, filePriorities[i]);
+				}
+			}
+			pieceDownloader.setPriority(piece, piecePriority);
 		}
 	}
 	
@@ -210,11 +213,12 @@ public class TorrentDownload implements PeerConnectionListener {
 	}
 		
     @Override
-    public void onNewConnection(PeerConnection peerConnection) {
+    public synchronized void onNewConnection(PeerConnection peerConnection) {
         synchronized (peerRepository) {
             peerRepository.add(peerConnection);
             logger.debug("New peer for download "+metadata.getName()+", "+peerConnection);
             peerConnection.sendHandshake();
+            pieceDownloader.addPeer(peerConnection);
             
             peerConnection.addMessageListener(new PeerMessageListener() {
                 @Override
@@ -225,19 +229,13 @@ public class TorrentDownload implements PeerConnectionListener {
                 }
                 @Override
                 public void onBitfield(BitField bitField) {
-                    peerConnection.setAmInterested(hasAnInterestingPiece(bitField));
+                    // the connection has already merged it with the pieces it knew about
+                    peerConnection.setInterestingPieces(peerConnection.getBitField().cardinalityAndNot(localBitField));
                 }
                 @Override
                 public void onHave(int pieceIndex) {
-                    peerConnection.setAmInterested(hasAnInterestingPiece(peerConnection.getBitField()));
-                }
-                @Override
-                public void onPiece(int pieceIndex) {
-                    localBitField.setPresent(pieceIndex, true);
-                    peerConnection.setAmInterested(hasAnInterestingPiece(peerConnection.getBitField()));
-                    
-                    for (PeerConnection peerConnection : peerRepository.getConnectedPeers()) {
-                        peerConnection.sendHave(pieceIndex);
+                    if (!localBitField.isPresent(pieceIndex)) {
+                        peerConnection.addInterestingPieces(1);
                     }
                 }
                 @Override
@@ -259,7 +257,7 @@ public class TorrentDownload implements PeerConnectionListener {
     }
 
     @Override
-    public void onConnectionFailed(Peer peer) {
+    public synchronized void onConnectionFailed(Peer peer) {
         peer.recordDisconnection();
         if (!peer.shouldForget()) {
             peerRepository.add(peer);
@@ -272,23 +270,85 @@ public class TorrentDownload implements PeerConnectionListener {
         return metadata.getInfoHash();
     }
     
-    private boolean hasAnInterestingPiece(BitField remoteBitField) {
-        return localBitField.reverse().intersection(remoteBitField).hasBitsSet();
+    /**
+     * Hashes the piece out of the network threads. Only when the data is correct the piece is
+     * announced to the other peers, otherwise it is discarded and the peers that sent it are penalised.
+     */
+    private void verifyPiece(Piece piece, Set<Peer> contributors) {
+        engine.getPieceVerifier().verify(piece, valid -> {
+            synchronized (TorrentDownload.this) {
+                if (valid) {
+                    onPieceVerified(piece);
+                } else {
+                    onCorruptPiece(piece, contributors);
+                }
+            }
+        });
+    }
+    
+    private void onPieceVerified(Piece piece) {
+        logger.debug("Piece {} verified", piece.getIndex());
+        piece.setVerified(true);
+        boolean alreadyPresent = localBitField.isPresent(piece.getIndex());
+        localBitField.setPresent(piece.getIndex(), true);
+        pieceDownloader.onPieceVerified(piece.getIndex());
+        for (PeerConnection peerConnection : peerRepository.getConnectedPeers()) {
+            peerConnection.sendHave(piece.getIndex());
+            if (!alreadyPresent && peerConnection.getBitField().isPresent(piece.getIndex())) {
+                peerConnection.addInterestingPieces(-1);
+            }
+        }
     }
     
-    private void checkCompletionStatus() {
-        if (!localBitField.hasBitsUnset()) {
-            try {
-                if (!storage.isCommited()) {
-                    logger.info("Torrent {} completed, commiting...", metadata.getName());
-                    storage.commit();
+    private void onCorruptPiece(Piece piece, Set<Peer> contributors) {
+        logger.warn("Piece {} doesn't match its checksum, discarding it", piece.getIndex());
+        piece.reset();
+        pieceDownloader.onCorruptPiece(piece.getIndex());
+        for (Peer peer : contributors) {
+            peer.recordCorruptPiece();
+            if (peer.shouldForget()) {
+                for (PeerConnection peerConnection : peerRepository.getConnectedPeers()) {
+                    if (peerConnection.getPeer().equals(peer)) {
+                        logger.info("Peer {} sent too much corrupt data. Disconnecting", peer);
+                        peerConnection.kill();
+                    }
                 }
-            } catch (IOException e) {
-                logger.error("Error while writing torrent data", e);
             }
         }
     }
     
+    private void checkCompletionStatus() {
+        if (!localBitField.hasBitsUnset() && !storage.isCommited() && !committing) {
+            logger.info("Torrent {} completed, commiting...", metadata.getName());
+            committing = true;
+            engine.getDiskIo().commit(storage, error -> {
+                synchronized (TorrentDownload.this) {
+                    committing = false;
+                    if (error != null) {
+                        logger.error("Error while writing torrent data", error);
+                    }
+                }
+            });
+        }
+    }
+    
+    private void saveProgress() {
+        long now = System.currentTimeMillis();
+        if (syncing || now - lastSync < ConfigManager.getResumeSyncInterval()) {
+            return;
+        }
+        syncing = true;
+        lastSync = now;
+        engine.getDiskIo().sync(storage, error -> {
+            synchronized (TorrentDownload.this) {
+                syncing = false;
+                if (error != null) {
+                    logger.error("Error saving the progress of "+metadata.getName(), error);
+                }
+            }
+        });
+    }
+    
     private void publishPeerConnectionsChangedEvent() {
         PeerConnectionsChangedEvent event = new PeerConnectionsChangedEvent();
         event.connectedPeers = peerRepository.connectedPeersCount();
@@ -0,0 +1,97 @@
+package es.amanzag.yatorrent.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.amanzag.yatorrent.protocol.io.NetworkEventLoopGroup;
+import es.amanzag.yatorrent.protocol.io.RateLimiter;
+import es.amanzag.yatorrent.storage.DiskIoPool;
+import es.amanzag.yatorrent.storage.PieceVerifier;
+import es.amanzag.yatorrent.storage.ReadCache;
+import es.amanzag.yatorrent.util.ConfigManager;
+
+/**
+ * Threads and resources shared by all the {@link TorrentDownload}s running in the process.
+ */
+public class TorrentEngine {
+
+    private NetworkEventLoopGroup eventLoops;
+    private ScheduledExecutorService scheduler;
+    private PieceVerifier pieceVerifier;
+    private ForkJoinPool recheckPool;
+    private DiskIoPool diskIo;
+    private RateLimiter downloadLimiter, uploadLimiter;
+    private ReadCache readCache;
+
+    public TorrentEngine() throws IOException {
+        eventLoops = new NetworkEventLoopGroup(ConfigManager.getNetworkThreads());
+        scheduler = Executors.newScheduledThreadPool(
+                ConfigManager.getSchedulerThreads(),
+                new ThreadFactoryBuilder().setNameFormat("scheduler-%d").build());
+        pieceVerifier = new PieceVerifier(ConfigManager.getHashingThreads(), ConfigManager.getHashingQueueSize());
+        scheduler.scheduleWithFixedDelay(pieceVerifier::resubmitPending, 1, 1, TimeUnit.SECONDS);
+        recheckPool = new ForkJoinPool(ConfigManager.getHashingThreads());
+        diskIo = new DiskIoPool(ConfigManager.getDiskThreads(), ConfigManager.getMaxPendingWrites());
+        // sockets paused because of the disk are enabled again in the next iteration of their loop
+        diskIo.addDrainListener(eventLoops::wakeup);
+        downloadLimiter = new RateLimiter(ConfigManager.getDownloadRate(), null);
+        uploadLimiter = new RateLimiter(ConfigManager.getUploadRate(), null);
+        readCache = new ReadCache(ConfigManager.getReadCacheSize());
+    }
+
+    public NetworkEventLoopGroup getEventLoops() {
+        return eventLoops;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public PieceVerifier getPieceVerifier() {
+        return pieceVerifier;
+    }
+
+    public ForkJoinPool getRecheckPool() {
+        return recheckPool;
+    }
+
+    public DiskIoPool getDiskIo() {
+        return diskIo;
+    }
+
+    /**
+     * @return the limit of the download bandwidth of all the torrents
+     */
+    public RateLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    public RateLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    /**
+     * @return the cache of the pieces being uploaded by all the torrents
+     */
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    /**
+     * Stops all the shared threads. Torrents must be destroyed before calling it.
+     */
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        eventLoops.shutdown();
+        diskIo.shutdown();
+        pieceVerifier.shutdown();
+        recheckPool.shutdown();
+    }
+
+}
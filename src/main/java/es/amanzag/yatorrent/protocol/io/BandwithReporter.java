@@ -24,11 +24,11 @@ public class BandwithReporter {
         this.bus = bus;
     }
     
-    public void register(int bytes) {
+    public synchronized void register(int bytes) {
         samples.addFirst(new AbstractMap.SimpleEntry<Instant, Integer>(Instant.now(), bytes));
     }
     
-    public void report() {
+    public synchronized void report() {
         Instant now = Instant.now();
         Instant earliestSample = now;
         int bytes = 0;
@@ -0,0 +1,24 @@
+package es.amanzag.yatorrent.protocol.io;
+
+import es.amanzag.yatorrent.protocol.Peer;
+import es.amanzag.yatorrent.protocol.PeerConnection;
+
+/**
+ * Attachment of every {@link java.nio.channels.SelectionKey} handled by a {@link NetworkEventLoop}.
+ * The connection and its rate limiters are empty until the socket finishes connecting.
+ */
+class ConnectionContext {
+
+    final TorrentNetworkManager manager;
+    final Peer peer;
+    PeerConnection connection;
+    RateLimiter downloadLimiter, uploadLimiter;
+    /** Time until which reads or writes are stopped because the connection ran out of bandwidth */
+    long readThrottledUntil, writeThrottledUntil;
+
+    ConnectionContext(TorrentNetworkManager manager, Peer peer) {
+        this.manager = manager;
+        this.peer = peer;
+    }
+
+}
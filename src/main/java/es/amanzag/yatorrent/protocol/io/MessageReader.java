@@ -10,25 +10,30 @@ import java.util.Optional;
 
 import es.amanzag.yatorrent.protocol.messages.MalformedMessageException;
 import es.amanzag.yatorrent.protocol.messages.RawMessage;
+import es.amanzag.yatorrent.util.BufferPool;
 
 /**
  * @author Alberto Manzaneque Garcia
  *
+ * The buffer of a message is taken from the {@link BufferPool} once its length is known, and given
+ * back when the reader is reset, so the message must be fully processed before that.
  */
 public class MessageReader {
 	
 	private final static int MAX_MESSAGE_LENGTH = 4 + 9 + 16384; // piece of 2^14 bytes
+	private final static int HANDSHAKE_LENGTH = 49 + 19; // fixed pstr
 	
 	protected RawMessage.Type type;
 	protected ByteBuffer buffer;
+	private ByteBuffer lengthPrefix;
 	private boolean valid;
 	private int length;
 	private int bytesRead;
 	
 	public MessageReader() {
 		this.type = null; // still undefined
-		buffer = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
-		buffer.mark();
+		buffer = null;
+		lengthPrefix = ByteBuffer.allocate(4);
 		valid = false;
 		length = -1;
 		bytesRead = 0;
@@ -41,32 +46,32 @@ public class MessageReader {
 	public void setHandshakeMode() throws MalformedMessageException {
 		if(length != -1) throw new MalformedMessageException("Can not change to handshake mode when it has started to read");
 		type = RawMessage.Type.HANDSHAKE;
-		length = 49 + 19; // fixed pstr
-		buffer.limit(length);
+		length = HANDSHAKE_LENGTH;
+		buffer = BufferPool.getDefault().acquire(length);
 	}
 	
-	public Optional<RawMessage> readFromChannel(ByteChannel channel) throws IOException, MalformedMessageException {
+	/**
+	 * @param maxBytes maximum number of bytes read from the channel
+	 */
+	public Optional<RawMessage> readFromChannel(ByteChannel channel, int maxBytes) throws IOException, MalformedMessageException {
 	    bytesRead = 0;
-	    int initialPosition = buffer.position();
 		if(isValid()) {
             throw new MalformedMessageException("The whole message is already read");
         }
 		if(length == -1) {
-			buffer.limit(4);
-			if(channel.read(buffer) == -1) {
-                throw new ConnectionClosedException();
-            }
-			bytesRead = buffer.position() - initialPosition;
-			if(buffer.remaining() == 0) {
-				length = buffer.getInt(0)+4;
-				buffer.limit(length);
+			bytesRead += read(channel, lengthPrefix, maxBytes);
+			if(lengthPrefix.hasRemaining()) {
+			    return Optional.empty();
+			}
+			length = lengthPrefix.getInt(0)+4;
+			if(length < 4 || length > MAX_MESSAGE_LENGTH) {
+			    throw new MalformedMessageException("Invalid message length "+length);
 			}
+			buffer = BufferPool.getDefault().acquire(length);
+			buffer.putInt(length-4);
 		}
-		if(length != -1 && buffer.remaining()>0) {
-			if(channel.read(buffer) == -1) {
-                throw new ConnectionClosedException();
-            }
-			bytesRead = buffer.position() - initialPosition;
+		if(buffer.hasRemaining() && bytesRead < maxBytes) {
+			bytesRead += read(channel, buffer, maxBytes - bytesRead);
 		}
 		if(buffer.remaining() == 0) {
 			if(type == null) {
@@ -88,15 +93,37 @@ public class MessageReader {
 		return Optional.empty();
 	}
 	
+	private int read(ByteChannel channel, ByteBuffer target, int maxBytes) throws IOException {
+	    int limit = target.limit();
+	    if(target.remaining() > maxBytes) {
+	        target.limit(target.position() + maxBytes);
+	    }
+	    int read;
+	    try {
+	        read = channel.read(target);
+	    } finally {
+	        target.limit(limit);
+	    }
+	    if(read == -1) {
+	        throw new ConnectionClosedException();
+	    }
+	    return read;
+	}
+	
 	public int remainingBytes() {
-		return buffer.remaining();
+		return buffer == null ? lengthPrefix.remaining() : buffer.remaining();
 	}
 	
+	/**
+	 * Discards the current message and gives its buffer back to the pool
+	 */
 	public void reset() {
 		length = -1;
 		type = null;
 		valid = false;
-		buffer.position(0).limit(0);
+		BufferPool.getDefault().release(buffer);
+		buffer = null;
+		lengthPrefix.clear();
 	}
 	
 	public int getBytesRead() {
@@ -1,7 +1,6 @@
 package es.amanzag.yatorrent.protocol.io;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.util.LinkedList;
 
@@ -22,27 +21,30 @@ public class MessageWriter {
     }
     
     /**
-     * @return true if there is nothing pending to be sent, false if there is
+     * Writes the pending messages until the channel doesn't accept more data or the given number
+     * of bytes is written
+     * @return number of bytes written
      * @throws IOException
      */
-    public boolean writeToChannel(ByteChannel channel) throws IOException {
-        while(isBusy()) {
-            ByteBuffer buffer = currentSending.getRawData();
-            channel.write(buffer);
-            if(buffer.hasRemaining()) {
-                return false;
+    public synchronized long writeToChannel(ByteChannel channel, long maxBytes) throws IOException {
+        long written = 0;
+        while(isBusy() && written < maxBytes) {
+            written += currentSending.writeTo(channel, maxBytes - written);
+            if(!currentSending.isWritten()) {
+                break;
             } else {
                 logger.debug("{} sent", currentSending.getType());
+                currentSending.release();
                 currentSending = null;
                 if(!messageQueue.isEmpty()) {
                     currentSending = messageQueue.removeFirst();
                 }
             }
         }
-        return true;
+        return written;
     }
     
-    public void send(RawMessage msg) {
+    public synchronized void send(RawMessage msg) {
         if(isBusy()) {
             messageQueue.add(msg);
         } else {
@@ -50,7 +52,19 @@ public class MessageWriter {
         }
     }
     
-    public boolean isBusy() {
+    /**
+     * Discards the messages pending to be sent
+     */
+    public synchronized void clear() {
+        if(currentSending != null) {
+            currentSending.release();
+            currentSending = null;
+        }
+        messageQueue.forEach(RawMessage::release);
+        messageQueue.clear();
+    }
+    
+    public synchronized boolean isBusy() {
         return currentSending != null || !messageQueue.isEmpty();
     }
     
@@ -0,0 +1,166 @@
+package es.amanzag.yatorrent.protocol.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread owning a {@link Selector} that serves the sockets of any number of torrents.
+ * Everything that touches the selector is done from the loop thread, other threads must
+ * go through {@link #execute(Runnable)}.
+ */
+public class NetworkEventLoop implements Runnable {
+
+    private final static Logger logger = LoggerFactory.getLogger(NetworkEventLoop.class);
+    private final static long SELECT_TIMEOUT = 1000;
+
+    private Selector selector;
+    private Queue<Runnable> tasks;
+    private Thread thread;
+    private volatile boolean running;
+    private long selectTimeout;
+
+    public NetworkEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this, name);
+        running = false;
+        selectTimeout = SELECT_TIMEOUT;
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    public void wakeup() {
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    void register(SelectableChannel channel, int ops, ConnectionContext context) {
+        execute(() -> {
+            try {
+                channel.register(selector, ops, context);
+            } catch (ClosedChannelException e) {
+                logger.debug("Channel for peer {} was closed before it could be registered", context.peer);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        logger.debug("Event loop {} started", thread.getName());
+        while (running) {
+            try {
+                selector.select(selectTimeout);
+                processSelectedKeys();
+                runPendingTasks();
+                updateInterestOps();
+            } catch (IOException e) {
+                logger.error("Unhandled exception", e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in event loop "+thread.getName(), e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("Error closing socket selector for "+thread.getName());
+        }
+        logger.debug("Event loop {} stopped", thread.getName());
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+        while(i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+            ConnectionContext context = (ConnectionContext) key.attachment();
+            if (key.isValid() && key.isConnectable()) {
+                context.manager.onConnectable(key, context, this);
+            }
+            if (key.isValid() && key.isWritable()) {
+                context.manager.onWritable(key, context);
+            }
+            if (key.isValid() && key.isReadable()) {
+                context.manager.onReadable(key, context);
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error running task in event loop "+thread.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * After processing all events, maybe some connections are now interested in writing, so we have to enable it.
+     * Reading is disabled while the torrent can't write the data received to disk fast enough.
+     * Connections that ran out of bandwidth are left out until they can try again, and the loop
+     * wakes up in time for that.
+     */
+    private void updateInterestOps() {
+        long now = System.currentTimeMillis();
+        selectTimeout = SELECT_TIMEOUT;
+        for (SelectionKey key : selector.keys()) {
+            ConnectionContext context = (ConnectionContext) key.attachment();
+            if (key.isValid() && context != null && context.connection != null) {
+                int ops = key.interestOps();
+                boolean readThrottled = context.readThrottledUntil > now;
+                boolean writeThrottled = context.writeThrottledUntil > now;
+                if(readThrottled) {
+                    selectTimeout = Math.min(selectTimeout, context.readThrottledUntil - now);
+                }
+                if(writeThrottled) {
+                    selectTimeout = Math.min(selectTimeout, context.writeThrottledUntil - now);
+                }
+                if(context.connection.isWriting() && !writeThrottled) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                if(context.manager.isReadingPaused() || readThrottled) {
+                    ops &= ~SelectionKey.OP_READ;
+                } else {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if(ops != key.interestOps()) {
+                    key.interestOps(ops);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package es.amanzag.yatorrent.protocol.io;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of {@link NetworkEventLoop}s shared by all the torrents. Connections are
+ * spread across the loops in a round robin fashion.
+ */
+public class NetworkEventLoopGroup {
+
+    private NetworkEventLoop[] loops;
+    private AtomicInteger nextLoop;
+
+    public NetworkEventLoopGroup(int nThreads) throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("At least one network thread is needed");
+        }
+        loops = new NetworkEventLoop[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            loops[i] = new NetworkEventLoop("network-" + i);
+        }
+        nextLoop = new AtomicInteger();
+        for (NetworkEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public NetworkEventLoop next() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    public void wakeup() {
+        for (NetworkEventLoop loop : loops) {
+            loop.wakeup();
+        }
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (NetworkEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        for (NetworkEventLoop loop : loops) {
+            loop.getThread().join();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package es.amanzag.yatorrent.protocol.io;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket that limits the bandwidth used in one direction. Buckets are nested, the global
+ * one is the parent of the bucket of every torrent, and these are the parents of the buckets of
+ * their connections, so the bytes granted are always taken from all the levels at once. A bucket
+ * with no rate doesn't limit anything by itself, it only passes the requests to its parent.
+ * <p>
+ * The sockets ask for a batch of bytes before every read or write and give back what they didn't
+ * use. Nothing is granted when the tokens left are too few to be worth a system call, and the
+ * socket can wait for {@link #getWaitTime()} before asking again.
+ * <p>
+ * The sockets that didn't get all they wanted queue up. Every request gets at most an even share
+ * of the tokens among them, and a socket only gets the tokens left after reserving a minimum batch
+ * for each socket in front of it. Sockets go to the back of the queue once they are served, so the
+ * bandwidth goes round the queue in batches, and the sockets that happen to be served first by the
+ * selector can't take all of it.
+ */
+public class RateLimiter {
+
+    /** Smallest batch granted when more than this is asked for */
+    private final static int MIN_GRANT = 4 * 1024;
+    /** Tokens accumulated at most, as a fraction of a second of traffic */
+    private final static int BURST_DIVISOR = 4;
+    /** Time after which a requester that didn't ask again stops competing for the tokens, in nanoseconds */
+    private final static long CONTENTION_EXPIRATION = 100_000_000L;
+
+    private RateLimiter parent;
+    private long rate;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+    /** Requesters that got less than they wanted in order of service, with the last time they asked */
+    private Map<Object, Long> contending;
+    private long lastExpiration;
+
+    /**
+     * @param rate bytes per second, 0 for no limit
+     * @param parent null for the top level
+     */
+    public RateLimiter(long rate, RateLimiter parent) {
+        this.rate = rate;
+        this.parent = parent;
+        capacity = Math.max(rate / BURST_DIVISOR, MIN_GRANT);
+        tokens = capacity;
+        lastRefill = System.nanoTime();
+        lastExpiration = lastRefill;
+        contending = new LinkedHashMap<>();
+    }
+
+    /**
+     * Takes up to the wanted number of bytes from this bucket and all its parents
+     * @return the bytes that can be transferred, maybe 0
+     */
+    public int acquire(int wanted) {
+        return acquire(wanted, this);
+    }
+
+    /**
+     * @param requester the bucket of the socket, which competes for the tokens in every level
+     */
+    private int acquire(int wanted, Object requester) {
+        if (rate <= 0) {
+            return parent == null ? wanted : parent.acquire(wanted, requester);
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            expireContenders(now);
+            int ahead = countAhead(requester);
+            int contenders = contending.containsKey(requester) ? contending.size() : contending.size() + 1;
+            double share = Math.max(MIN_GRANT, tokens / contenders);
+            double available = tokens - (double) ahead * MIN_GRANT;
+            int granted = (int) Math.max(0, Math.min(wanted, Math.min(share, available)));
+            if (granted < Math.min(wanted, MIN_GRANT)) {
+                contending.put(requester, now);
+                return 0;
+            }
+            if (parent != null) {
+                granted = parent.acquire(granted, requester);
+            }
+            tokens -= granted;
+            contending.remove(requester);
+            if (granted < wanted) {
+                contending.put(requester, now);
+            }
+            return granted;
+        }
+    }
+
+    /**
+     * @return number of requesters in front of the given one, all of them if it isn't queued
+     */
+    private int countAhead(Object requester) {
+        if (!contending.containsKey(requester)) {
+            return contending.size();
+        }
+        int ahead = 0;
+        for (Object contender : contending.keySet()) {
+            if (contender == requester) {
+                break;
+            }
+            ahead++;
+        }
+        return ahead;
+    }
+
+    private void expireContenders(long now) {
+        if (now - lastExpiration < CONTENTION_EXPIRATION) {
+            return;
+        }
+        contending.values().removeIf(lastAsked -> now - lastAsked >= CONTENTION_EXPIRATION);
+        lastExpiration = now;
+    }
+
+    /**
+     * @return milliseconds until this bucket and its parents have tokens enough to grant something
+     * to this bucket, 0 if they already have
+     */
+    public long getWaitTime() {
+        return getWaitTime(this);
+    }
+
+    private long getWaitTime(Object requester) {
+        long wait = 0;
+        if (rate > 0) {
+            synchronized (this) {
+                refill(System.nanoTime());
+                double needed = Math.min(capacity, (countAhead(requester) + 1.0) * MIN_GRANT);
+                if (tokens < needed) {
+                    wait = (long) Math.ceil((needed - tokens) * 1000 / rate);
+                }
+            }
+        }
+        return parent == null ? wait : Math.max(wait, parent.getWaitTime(requester));
+    }
+
+    /**
+     * Gives back the bytes granted that weren't transferred
+     */
+    public void refund(int bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        if (rate > 0) {
+            synchronized (this) {
+                tokens = Math.min(capacity, tokens + bytes);
+            }
+        }
+        if (parent != null) {
+            parent.refund(bytes);
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+}
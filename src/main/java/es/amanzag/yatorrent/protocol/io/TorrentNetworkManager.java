@@ -3,12 +3,12 @@ package es.amanzag.yatorrent.protocol.io;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,133 +20,198 @@ import es.amanzag.yatorrent.protocol.Peer;
 import es.amanzag.yatorrent.protocol.PeerConnection;
 import es.amanzag.yatorrent.protocol.PeerConnectionListener;
 import es.amanzag.yatorrent.protocol.PeerConnectionProducer;
-import es.amanzag.yatorrent.protocol.PeerMessageListener;
+import es.amanzag.yatorrent.storage.DiskIoPool;
 import es.amanzag.yatorrent.storage.TorrentStorage;
+import es.amanzag.yatorrent.util.BufferPool;
+import es.amanzag.yatorrent.util.ConfigManager;
 
+/**
+ * Network side of a torrent. The sockets of the torrent are spread across the shared
+ * {@link NetworkEventLoopGroup}, and the protocol processing of every connection is done
+ * holding the torrent lock, so the state of a torrent is never modified concurrently.
+ * <p>
+ * Every read and write takes its bytes from the {@link RateLimiter}s of the connection, the torrent
+ * and the engine. The bytes are granted in batches of at most {@link #QUANTUM}, so the bandwidth
+ * is shared between the connections that are ready, and a connection that gets nothing stops
+ * being selected until the buckets have refilled.
+ */
 public class TorrentNetworkManager implements PeerConnectionProducer {
-    
+
     private final static Logger logger = LoggerFactory.getLogger(TorrentNetworkManager.class);
+    /** Maximum bytes read or written in one go */
+    private final static int QUANTUM = 32 * 1024;
 
-    private Selector sockSelector;
+    private NetworkEventLoopGroup eventLoops;
     private TorrentMetadata metadata;
     private TorrentStorage storage;
+    private DiskIoPool diskIo;
     private List<PeerConnectionListener> listeners;
     private BandwithReporter bandwithReporter;
-    
-    public TorrentNetworkManager(TorrentMetadata metadata, TorrentStorage storage, EventBus eventBus) {
-        sockSelector = null;
+    private EventBus eventBus;
+    private Object torrentLock;
+    private RateLimiter downloadLimiter, uploadLimiter;
+    private Set<SocketChannel> pendingConnections;
+    private volatile boolean started;
+
+    /**
+     * @param downloadLimiter global limit of the download bandwidth, shared by all the torrents
+     * @param uploadLimiter global limit of the upload bandwidth, shared by all the torrents
+     */
+    public TorrentNetworkManager(TorrentMetadata metadata, TorrentStorage storage, EventBus eventBus,
+            NetworkEventLoopGroup eventLoops, DiskIoPool diskIo, RateLimiter downloadLimiter, RateLimiter uploadLimiter,
+            Object torrentLock) {
         this.metadata = metadata;
         this.storage = storage;
-        this.listeners = new ArrayList<>();
+        this.diskIo = diskIo;
+        this.eventLoops = eventLoops;
+        this.torrentLock = torrentLock;
+        this.downloadLimiter = new RateLimiter(ConfigManager.getTorrentDownloadRate(), downloadLimiter);
+        this.uploadLimiter = new RateLimiter(ConfigManager.getTorrentUploadRate(), uploadLimiter);
+        this.listeners = new CopyOnWriteArrayList<>();
+        pendingConnections = new HashSet<>();
         bandwithReporter = new BandwithReporter(eventBus);
+        this.eventBus = eventBus;
+        started = false;
     }
-    
-    public void start() throws IOException {
-        sockSelector = Selector.open();
+
+    public void start() {
+        started = true;
     }
-    
+
     public void stop() throws IOException {
-        sockSelector.close();
+        started = false;
+        List<SocketChannel> pending;
+        synchronized (pendingConnections) {
+            pending = new ArrayList<>(pendingConnections);
+            pendingConnections.clear();
+        }
+        for (SocketChannel channel : pending) {
+            channel.close();
+        }
     }
-    
+
     public void connect(Peer peer) throws IOException {
+        if (!started) {
+            throw new IllegalStateException("Network manager for "+metadata.getName()+" is not started");
+        }
         SocketChannel sock = SocketChannel.open();
-        sock.configureBlocking(false);
-        sock.connect(new InetSocketAddress(peer.getAddress(), peer.getPort()));
-        sock.register(sockSelector, SelectionKey.OP_CONNECT, peer);
+        try {
+            sock.configureBlocking(false);
+            sock.connect(new InetSocketAddress(peer.getAddress(), peer.getPort()));
+        } catch (IOException e) {
+            sock.close();
+            throw e;
+        }
+        synchronized (pendingConnections) {
+            pendingConnections.add(sock);
+        }
+        eventLoops.next().register(sock, SelectionKey.OP_CONNECT, new ConnectionContext(this, peer));
     }
-    
-    public void processSocketEvents() {
+
+    public void reportBandwidth() {
+        bandwithReporter.report();
+        eventBus.post(BufferPool.getDefault().getStats());
+    }
+
+    /**
+     * @return whether the sockets of the torrent shouldn't be read because the disk is behind
+     */
+    boolean isReadingPaused() {
+        return diskIo.isOverloaded();
+    }
+
+    void onConnectable(SelectionKey key, ConnectionContext context, NetworkEventLoop eventLoop) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Peer peer = context.peer;
         try {
-            if(sockSelector.select(5000)>0) {
-                Set<SelectionKey> keys = sockSelector.selectedKeys();
-                Iterator<SelectionKey> i = keys.iterator();
-                while(i.hasNext()) {
-                    SelectionKey key = i.next();
-                    i.remove();
-                    
-                    if(key.isConnectable()) {
-                        SocketChannel channel = (SocketChannel) key.channel();
-                        Peer peer = (Peer) key.attachment();
-                        try {
-                            if(channel.isConnectionPending()) {
-                                channel.finishConnect();
-                                PeerConnection conn = new PeerConnection(peer, channel, storage, metadata);
-                                key.attach(conn);
-                                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                                logger.debug("Connected to new peer: "+peer);
-                                for (PeerConnectionListener listener : listeners) {
-                                    listener.onNewConnection(conn);
-                                }
-                                conn.addMessageListener(new PeerMessageListener() {
-                                    @Override
-                                    public void onDisconnect() {
-                                        SelectionKey sk = conn.getChannel().keyFor(sockSelector);
-                                        if(sk != null) {
-                                            sk.cancel();
-                                        }
-                                    }
-                                });
-                            }
-                        } catch (IOException e) {
-                            logger.debug("Can not connect to peer "+peer+". "+e.getMessage());
-                            key.attach(null);
-                            key.cancel();
-                            for (PeerConnectionListener peerConnectionListener : listeners) {
-                                peerConnectionListener.onConnectionFailed(peer);
-                            }
-                        } catch (Exception e) {
-                            logger.error("Error establishing connection to "+peer, e);
-                            key.attach(null);
-                            key.cancel();
-                        }
-                    } 
-                    if (key.isValid() && key.isWritable()) {
-                        PeerConnection conn = (PeerConnection) key.attachment();
-                        try {
-                            conn.doWrite();
-                            if(!conn.isWriting()) {
-                                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-                            }
-                        } catch (Exception e) {
-                            logger.debug("Error sending message to "+conn.getPeer()+". Closing connection: "+e.getMessage());
-                            conn.kill();
-                        }
-                    } 
-                    if (key.isValid() && key.isReadable()) {
-                        PeerConnection conn = (PeerConnection) key.attachment();
-                        try {
-                            if(!conn.getChannel().isOpen()) {
-                                logger.debug("Socket closed. Connection with "+conn.getPeer()+" dropped");
-                                conn.kill();
-                                key.cancel();
-                            } else {
-                                int bytesRead = conn.doRead();
-                                bandwithReporter.register(bytesRead);
-                            }
-                        } catch (ConnectionClosedException e) {
-                            logger.info("Peer {} closed the connection", conn.getPeer());
-                            conn.kill();
-                        } catch (Exception e) {
-                            logger.error("Error reading from socket ("+e.getMessage()+"). Closing connection with "+conn.getPeer(), e);
-                            conn.kill();
-                        }
+            if(channel.finishConnect()) {
+                synchronized (pendingConnections) {
+                    pendingConnections.remove(channel);
+                }
+                PeerConnection conn = new PeerConnection(peer, channel, storage, metadata, diskIo, torrentLock);
+                conn.setEventLoop(eventLoop);
+                context.downloadLimiter = new RateLimiter(ConfigManager.getPeerDownloadRate(), downloadLimiter);
+                context.uploadLimiter = new RateLimiter(ConfigManager.getPeerUploadRate(), uploadLimiter);
+                context.connection = conn;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                logger.debug("Connected to new peer: "+peer);
+                synchronized (torrentLock) {
+                    for (PeerConnectionListener listener : listeners) {
+                        listener.onNewConnection(conn);
                     }
                 }
             }
-            // after processing all events, maybe some connections are now interested in writing, so we have to enable it
-            for (SelectionKey key : sockSelector.keys()) {
-                if (key.isValid() && key.attachment() instanceof PeerConnection) {
-                    PeerConnection pc = (PeerConnection) key.attachment();
-                    boolean writeInterest = (key.interestOps() & SelectionKey.OP_WRITE) > 0;
-                    if(!writeInterest && pc != null && pc.isWriting()) {
-                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                    }
+        } catch (IOException e) {
+            logger.debug("Can not connect to peer "+peer+". "+e.getMessage());
+            discardPendingConnection(key, channel);
+            synchronized (torrentLock) {
+                for (PeerConnectionListener peerConnectionListener : listeners) {
+                    peerConnectionListener.onConnectionFailed(peer);
                 }
             }
-            bandwithReporter.report();
+        } catch (Exception e) {
+            logger.error("Error establishing connection to "+peer, e);
+            discardPendingConnection(key, channel);
+        }
+    }
+
+    private void discardPendingConnection(SelectionKey key, SocketChannel channel) {
+        synchronized (pendingConnections) {
+            pendingConnections.remove(channel);
+        }
+        key.attach(null);
+        key.cancel();
+        try {
+            channel.close();
         } catch (IOException e) {
-            logger.error("Unhandled exception", e);
+            logger.debug("Error closing failed connection. "+e.getMessage());
+        }
+    }
+
+    void onWritable(SelectionKey key, ConnectionContext context) {
+        PeerConnection conn = context.connection;
+        try {
+            int allowed = context.uploadLimiter.acquire(QUANTUM);
+            if(allowed == 0) {
+                context.writeThrottledUntil = System.currentTimeMillis() + Math.max(1, context.uploadLimiter.getWaitTime());
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            long written = conn.doWrite(allowed);
+            context.uploadLimiter.refund(allowed - (int) written);
+            if(!conn.isWriting()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (Exception e) {
+            logger.debug("Error sending message to "+conn.getPeer()+". Closing connection: "+e.getMessage());
+            conn.kill();
+        }
+    }
+
+    void onReadable(SelectionKey key, ConnectionContext context) {
+        PeerConnection conn = context.connection;
+        try {
+            if(!conn.getChannel().isOpen()) {
+                logger.debug("Socket closed. Connection with "+conn.getPeer()+" dropped");
+                conn.kill();
+                key.cancel();
+            } else {
+                int allowed = context.downloadLimiter.acquire(QUANTUM);
+                if(allowed == 0) {
+                    context.readThrottledUntil = System.currentTimeMillis() + Math.max(1, context.downloadLimiter.getWaitTime());
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                int bytesRead = conn.doRead(allowed);
+                context.downloadLimiter.refund(allowed - bytesRead);
+                bandwithReporter.register(bytesRead);
+            }
+        } catch (ConnectionClosedException e) {
+            logger.info("Peer {} closed the connection", conn.getPeer());
+            conn.kill();
+        } catch (Exception e) {
+            logger.error("Error reading from socket ("+e.getMessage()+"). Closing connection with "+conn.getPeer(), e);
+            conn.kill();
         }
     }
 
@@ -154,5 +219,5 @@ public class TorrentNetworkManager implements PeerConnectionProducer {
     public void addPeerConnectionListener(PeerConnectionListener listener) {
         listeners.add(listener);
     }
-    
+
 }
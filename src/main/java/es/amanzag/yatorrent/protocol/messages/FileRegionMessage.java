@@ -0,0 +1,53 @@
+package es.amanzag.yatorrent.protocol.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import es.amanzag.yatorrent.storage.Piece;
+
+/**
+ * Message whose payload is a region of a piece. The header is written from memory and the payload
+ * is transferred straight from the file to the socket, so it never goes through the heap.
+ */
+public class FileRegionMessage extends RawMessage {
+    
+    private Piece piece;
+    private int offset;
+    private int length;
+    private int transferred;
+    
+    public FileRegionMessage(Type type, int length, ByteBuffer header, Piece piece, int offset, int regionLength) {
+        super(type, length, header);
+        this.piece = piece;
+        this.offset = offset;
+        this.length = regionLength;
+        transferred = 0;
+    }
+    
+    @Override
+    public long writeTo(WritableByteChannel channel, long maxBytes) throws IOException {
+        long written = 0;
+        if(getRawData().hasRemaining()) {
+            written = super.writeTo(channel, maxBytes);
+            if(getRawData().hasRemaining()) {
+                return written;
+            }
+        }
+        while(transferred < length && written < maxBytes) {
+            long count = piece.transferTo(offset + transferred, (int) Math.min(length - transferred, maxBytes - written), channel);
+            if(count <= 0) {
+                break;
+            }
+            transferred += count;
+            written += count;
+        }
+        return written;
+    }
+    
+    @Override
+    public boolean isWritten() {
+        return super.isWritten() && transferred == length;
+    }
+
+}
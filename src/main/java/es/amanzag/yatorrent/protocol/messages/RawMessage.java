@@ -2,11 +2,13 @@ package es.amanzag.yatorrent.protocol.messages;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import es.amanzag.yatorrent.protocol.BitField;
 import es.amanzag.yatorrent.protocol.BlockRequest;
 import es.amanzag.yatorrent.protocol.TorrentProtocolException;
 import es.amanzag.yatorrent.storage.Piece;
+import es.amanzag.yatorrent.util.BufferPool;
 
 public class RawMessage {
 
@@ -44,6 +46,38 @@ public class RawMessage {
         return rawData;
     }
     
+    /**
+     * Returns the buffer of the message to the pool. The message can't be used after that.
+     */
+    public void release() {
+        BufferPool.getDefault().release(rawData);
+        rawData = null;
+    }
+    
+    /**
+     * Writes as much of the message as the channel accepts, up to the given number of bytes
+     * @return number of bytes written
+     */
+    public long writeTo(WritableByteChannel channel, long maxBytes) throws IOException {
+        if (rawData.remaining() <= maxBytes) {
+            return channel.write(rawData);
+        }
+        int limit = rawData.limit();
+        rawData.limit(rawData.position() + (int) maxBytes);
+        try {
+            return channel.write(rawData);
+        } finally {
+            rawData.limit(limit);
+        }
+    }
+    
+    /**
+     * @return true if the whole message has been written
+     */
+    public boolean isWritten() {
+        return !rawData.hasRemaining();
+    }
+    
     public static RawMessage.Type decodeMessageType(byte type) {
         if(type == RawMessage.Type.CHOKE.getId()) {
             return RawMessage.Type.CHOKE;
@@ -119,7 +153,7 @@ public class RawMessage {
     private final static byte[] RESERVED_BYTES = new byte[]{0,0,0,0,0,0,0,0};
     
     public static RawMessage createHandshake(byte[] infoHash, byte[] peerId) {
-        ByteBuffer buffer = ByteBuffer.allocate(1 + PSTR.length + RESERVED_BYTES.length + infoHash.length + peerId.length);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(1 + PSTR.length + RESERVED_BYTES.length + infoHash.length + peerId.length);
         buffer.put(PSTRLEN);
         buffer.put(PSTR);
         buffer.put(RESERVED_BYTES);
@@ -130,44 +164,44 @@ public class RawMessage {
     }
     
     public static RawMessage createInterested() {
-        ByteBuffer buffer = ByteBuffer.allocate(5);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(5);
         buffer.putInt(1);
         buffer.put(Type.INTERESTED.getId());
         buffer.flip();
         return new RawMessage(Type.INTERESTED, 1, buffer);
     }
     public static RawMessage createNotInterested() {
-        ByteBuffer buffer = ByteBuffer.allocate(5);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(5);
         buffer.putInt(1);
         buffer.put(Type.NOT_INTERESTED.getId());
         buffer.flip();
         return new RawMessage(Type.NOT_INTERESTED, 1, buffer);
     }
     public static RawMessage createChoke() {
-        ByteBuffer buffer = ByteBuffer.allocate(5);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(5);
         buffer.putInt(1);
         buffer.put(Type.CHOKE.getId());
         buffer.flip();
         return new RawMessage(Type.CHOKE, 1, buffer);
     }
     public static RawMessage createUnchoke() {
-        ByteBuffer buffer = ByteBuffer.allocate(5);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(5);
         buffer.putInt(1);
         buffer.put(Type.UNCHOKE.getId());
         buffer.flip();
         return new RawMessage(Type.UNCHOKE, 1, buffer);
     }
     public static RawMessage createBitField(BitField bitField) {
-        byte[] byteArray = bitField.asByteArray();
-        ByteBuffer buffer = ByteBuffer.allocate(5 + byteArray.length);
-        buffer.putInt(1 + byteArray.length);
+        int length = bitField.getByteLength();
+        ByteBuffer buffer = BufferPool.getDefault().acquire(5 + length);
+        buffer.putInt(1 + length);
         buffer.put(Type.BITFIELD.getId());
-        buffer.put(byteArray);
+        bitField.writeTo(buffer);
         buffer.flip();
-        return new RawMessage(Type.BITFIELD, 1 + byteArray.length, buffer);
+        return new RawMessage(Type.BITFIELD, 1 + length, buffer);
     }
     public static RawMessage createRequest(int pieceIndex, int offset, int length) {
-        ByteBuffer buffer = ByteBuffer.allocate(4+1+12);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(4+1+12);
         buffer.putInt(13);
         buffer.put(Type.REQUEST.getId());
         buffer.putInt(pieceIndex);
@@ -176,21 +210,36 @@ public class RawMessage {
         buffer.flip();
         return new RawMessage(Type.REQUEST, 13, buffer);
     }
+    public static RawMessage createCancel(int pieceIndex, int offset, int length) {
+        ByteBuffer buffer = BufferPool.getDefault().acquire(4+1+12);
+        buffer.putInt(13);
+        buffer.put(Type.CANCEL.getId());
+        buffer.putInt(pieceIndex);
+        buffer.putInt(offset);
+        buffer.putInt(length);
+        buffer.flip();
+        return new RawMessage(Type.CANCEL, 13, buffer);
+    }
     public static RawMessage createHave(int pieceIndex) {
-        ByteBuffer buffer = ByteBuffer.allocate(4+1+4);
+        ByteBuffer buffer = BufferPool.getDefault().acquire(4+1+4);
         buffer.putInt(5);
         buffer.put(Type.HAVE.getId());
         buffer.putInt(pieceIndex);
         buffer.flip();
         return new RawMessage(Type.HAVE, 5, buffer);
     }
-    public static RawMessage createPiece(BlockRequest block, Piece piece) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(1 + 9 + block.length);
-        buffer.putInt(9 + block.length);
-        buffer.put(Type.PIECE.getId());
-        piece.read(buffer, block.offset);
-        buffer.flip();
-        return new RawMessage(Type.PIECE, 9 + block.length, buffer);
+    /**
+     * Only the header is built in memory, the block is sent straight from the file when writing
+     * the message.
+     */
+    public static RawMessage createPiece(BlockRequest block, Piece piece) {
+        ByteBuffer header = BufferPool.getDefault().acquire(4+1+8);
+        header.putInt(9 + block.length);
+        header.put(Type.PIECE.getId());
+        header.putInt(block.pieceIndex);
+        header.putInt(block.offset);
+        header.flip();
+        return new FileRegionMessage(Type.PIECE, 9 + block.length, header, piece, block.offset, block.length);
     }
 
 }
@@ -20,11 +20,11 @@ import es.amanzag.yatorrent.protocol.Peer;
 public class TrackerResponse {
 	
 	private String warningMessage;
-	private Integer interval;
-	private Integer minInterval;
+	private Long interval;
+	private Long minInterval;
 	private String trackerId;
-	private Integer complete;
-	private Integer incomplete;
+	private Long complete;
+	private Long incomplete;
 	private List<Peer> peers;
 	
 	protected TrackerResponse() {
@@ -44,28 +44,28 @@ public class TrackerResponse {
 			
 			response.warningMessage = (String) root.get("warning message");
 			
-			response.interval = (Integer) root.get("interval");
+			response.interval = (Long) root.get("interval");
 			if(response.interval == null) {
                 throw new TrackerProtocolException("interval not present in tracker response");
             }
 
-			response.minInterval = (Integer) root.get("min interval");
+			response.minInterval = (Long) root.get("min interval");
 			response.trackerId = (String) root.get("tracker id");
-			response.complete = (Integer) root.get("complete");
-			response.incomplete = (Integer) root.get("incomplete");
+			response.complete = (Long) root.get("complete");
+			response.incomplete = (Long) root.get("incomplete");
 			
 			Object peers = root.get("peers");
 			
 			if(peers instanceof List) { // normal mode
 				for (Map<String, Object> dict : (List<Map<String, Object>>)peers) {
 					String ip = (String) dict.get("ip");
-					Integer port = (Integer) dict.get("port");
-					if(ip == null || port == null) {
+					Long port = (Long) dict.get("port");
+					if(ip == null || port == null || port < 0 || port > 0xFFFF) {
 						throw new TrackerProtocolException("malformed peer list");
 					}
 					String peerId = (String) dict.get("peer id");
 					Peer peer = null;
-					peer = new Peer(ip, port);
+					peer = new Peer(ip, port.intValue());
 					if(peerId == null) {
 						peer.setId(BDecoder.toBytes(peerId));
 					}
@@ -0,0 +1,158 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.amanzag.yatorrent.util.BufferPool;
+
+/**
+ * Does the disk work of all the torrents in a few worker threads, so a slow disk never blocks the
+ * network threads. The jobs of a piece always go to the same worker, so its blocks are written in
+ * the order they arrive.
+ * <p>
+ * Callbacks are invoked from the worker threads, with the exception of the job or null if it
+ * went well. When too much data is waiting to be written the pool becomes overloaded, and the
+ * network threads should stop reading until the drain listeners are notified.
+ */
+public class DiskIoPool {
+
+    private final static Logger logger = LoggerFactory.getLogger(DiskIoPool.class);
+
+    private ExecutorService[] workers;
+    private long maxPendingWriteBytes;
+    private AtomicLong pendingWriteBytes;
+    private volatile boolean overloaded;
+    private List<Runnable> drainListeners;
+
+    public DiskIoPool(int threads, long maxPendingWriteBytes) {
+        workers = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("disk-"+i).setDaemon(true).build());
+        }
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+        pendingWriteBytes = new AtomicLong();
+        overloaded = false;
+        drainListeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Writes a block of a piece. The data is copied, so the buffer can be reused as soon as this
+     * method returns.
+     */
+    public void write(Piece piece, int offset, ByteBuffer data, Consumer<Exception> callback) {
+        ByteBuffer block = BufferPool.getDefault().acquire(data.remaining());
+        block.put(data);
+        block.flip();
+        int length = block.remaining();
+        if (pendingWriteBytes.addAndGet(length) > maxPendingWriteBytes && !overloaded) {
+            logger.debug("Disk can't keep up, pausing reads from the network");
+            overloaded = true;
+        }
+        worker(piece).execute(() -> {
+            Exception error = null;
+            try {
+                piece.writeBlock(offset, block);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            onWritten(length);
+            callback.accept(error);
+        });
+    }
+
+    /**
+     * Reads a whole piece into memory, so it can be uploaded without blocking
+     */
+    public void read(Piece piece, Consumer<Exception> callback) {
+        worker(piece).execute(() -> {
+            Exception error = null;
+            try {
+                if (!piece.preload()) {
+                    error = new IOException("Piece "+piece.getIndex()+" can't be read into memory");
+                }
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            callback.accept(error);
+        });
+    }
+
+    /**
+     * Saves the progress of a torrent
+     * @see TorrentStorage#sync()
+     */
+    public void sync(TorrentStorage storage, Consumer<Exception> callback) {
+        worker(storage).execute(() -> {
+            Exception error = null;
+            try {
+                storage.sync();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            callback.accept(error);
+        });
+    }
+
+    /**
+     * Flushes all the data of a completed torrent to disk
+     * @see TorrentStorage#commit()
+     */
+    public void commit(TorrentStorage storage, Consumer<Exception> callback) {
+        worker(storage).execute(() -> {
+            Exception error = null;
+            try {
+                storage.commit();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            callback.accept(error);
+        });
+    }
+
+    private void onWritten(int length) {
+        long pending = pendingWriteBytes.addAndGet(-length);
+        if (overloaded && pending <= maxPendingWriteBytes / 2) {
+            overloaded = false;
+            logger.debug("Disk caught up, resuming reads from the network");
+            drainListeners.forEach(Runnable::run);
+        }
+    }
+
+    private ExecutorService worker(Object key) {
+        return workers[Math.floorMod(key.hashCode(), workers.length)];
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @param listener invoked when the pool stops being overloaded, from a worker thread
+     */
+    public void addDrainListener(Runnable listener) {
+        drainListeners.add(listener);
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers) {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+}
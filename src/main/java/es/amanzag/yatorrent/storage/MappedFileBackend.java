@@ -0,0 +1,111 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accesses the files through windows mapped in memory, so reads and writes are plain memory copies.
+ * Only the most recently used windows are kept mapped, which bounds the address space used no
+ * matter how big the torrent is.
+ */
+class MappedFileBackend extends MultiFileBackend {
+
+    private final static long WINDOW_SIZE = 32 * 1024 * 1024;
+    private final static int MAX_WINDOWS = 16;
+
+    private Map<Long, MappedByteBuffer> windows;
+
+    MappedFileBackend(Allocation allocation, List<Path> paths, List<Long> lengths) throws IOException {
+        super(allocation, paths, lengths);
+        windows = new LinkedHashMap<Long, MappedByteBuffer>(MAX_WINDOWS, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                if (size() > MAX_WINDOWS) {
+                    eldest.getValue().force();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    protected void writeToFile(int file, long filePosition, ByteBuffer data) throws IOException {
+        int limit = data.limit();
+        try {
+            while (data.hasRemaining()) {
+                ByteBuffer window = window(file, filePosition);
+                int count = Math.min(data.remaining(), window.remaining());
+                data.limit(data.position() + count);
+                window.put(data);
+                filePosition += count;
+                data.limit(limit);
+            }
+        } finally {
+            data.limit(limit);
+        }
+    }
+
+    @Override
+    protected int readFromFile(int file, long filePosition, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            ByteBuffer window = window(file, filePosition + total);
+            int count = Math.min(buffer.remaining(), window.remaining());
+            window.limit(window.position() + count);
+            buffer.put(window);
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    protected long transferFromFile(int file, long filePosition, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer window = window(file, filePosition);
+        window.limit((int) Math.min(window.limit(), window.position() + count));
+        return target.write(window);
+    }
+
+    /**
+     * @return a view of the window that contains the position, positioned on it
+     */
+    private ByteBuffer window(int file, long filePosition) throws IOException {
+        long windowIndex = filePosition / WINDOW_SIZE;
+        long windowStart = windowIndex * WINDOW_SIZE;
+        MappedByteBuffer window;
+        synchronized (windows) {
+            Long key = ((long) file << 32) | windowIndex;
+            window = windows.get(key);
+            if (window == null) {
+                long size = Math.min(WINDOW_SIZE, getFileLength(file) - windowStart);
+                window = channels[file].map(MapMode.READ_WRITE, windowStart, size);
+                windows.put(key, window);
+            }
+        }
+        ByteBuffer view = window.duplicate();
+        view.position((int) (filePosition - windowStart));
+        return view;
+    }
+
+    @Override
+    public void force() throws IOException {
+        List<MappedByteBuffer> mapped;
+        synchronized (windows) {
+            mapped = new ArrayList<>(windows.values());
+        }
+        for (MappedByteBuffer window : mapped) {
+            window.force();
+        }
+        super.force();
+    }
+
+}
@@ -0,0 +1,93 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Keeps the data in memory only, to test and benchmark without touching the disk. Memory is
+ * allocated in pages as they are written, and pages never written read as zeros.
+ */
+class MemoryBackend implements StorageBackend {
+
+    private final static int PAGE_SIZE = 1024 * 1024;
+
+    private long length;
+    private byte[][] pages;
+
+    MemoryBackend(long length) {
+        this.length = length;
+        pages = new byte[(int) ((length + PAGE_SIZE - 1) / PAGE_SIZE)][];
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) throws IOException {
+        checkBounds(position, data.remaining());
+        while (data.hasRemaining()) {
+            int offset = (int) (position % PAGE_SIZE);
+            int count = Math.min(data.remaining(), PAGE_SIZE - offset);
+            data.get(page(position, true), offset, count);
+            position += count;
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining() && position < length) {
+            int offset = (int) (position % PAGE_SIZE);
+            int count = (int) Math.min(Math.min(buffer.remaining(), PAGE_SIZE - offset), length - position);
+            byte[] page = page(position, false);
+            if (page == null) {
+                for (int i = 0; i < count; i++) {
+                    buffer.put((byte) 0);
+                }
+            } else {
+                buffer.put(page, offset, count);
+            }
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        int offset = (int) (position % PAGE_SIZE);
+        int toTransfer = (int) Math.min(Math.min(count, PAGE_SIZE - offset), length - position);
+        ByteBuffer data = ByteBuffer.allocate(toTransfer);
+        read(position, data);
+        data.flip();
+        return target.write(data);
+    }
+
+    @Override
+    public void force() {
+        // nothing to persist
+    }
+
+    @Override
+    public void close() {
+        pages = new byte[pages.length][];
+    }
+
+    private synchronized byte[] page(long position, boolean create) {
+        int index = (int) (position / PAGE_SIZE);
+        if (pages[index] == null && create) {
+            pages[index] = new byte[PAGE_SIZE];
+        }
+        return pages[index];
+    }
+
+    private void checkBounds(long position, int count) {
+        if (position < 0 || position + count > length) {
+            throw new IndexOutOfBoundsException("Range "+position+"+"+count+" is out of the torrent");
+        }
+    }
+
+}
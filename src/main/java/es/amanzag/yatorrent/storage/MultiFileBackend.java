@@ -0,0 +1,240 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Maps the continuous byte space of a torrent onto the files it contains, so data is written
+ * straight to its final location. Pieces that span several files are split across them, and
+ * subclasses only deal with ranges within a single file.
+ * <p>
+ * The space of the files is reserved according to the {@link StorageBackend.Allocation} mode before
+ * anything is written to them. In lazy mode the files are split in chunks, and every chunk is
+ * filled the first time something is written in it. The chunks below the size of a file when it
+ * is opened are taken as allocated.
+ */
+abstract class MultiFileBackend implements StorageBackend {
+
+    private final static long ALLOCATION_CHUNK = 64 * 1024 * 1024;
+    private final static ByteBuffer ZEROS = ByteBuffer.allocateDirect(1024 * 1024).asReadOnlyBuffer();
+
+    private Path[] paths;
+    protected FileChannel[] channels;
+    /** Position of each file in the torrent, the last element is the total length */
+    private long[] offsets;
+    private Allocation allocation;
+    /** Chunks of each file already reserved in lazy mode, every set is its own lock */
+    private BitSet[] allocatedChunks;
+
+    MultiFileBackend(Allocation allocation, List<Path> paths, List<Long> lengths) throws IOException {
+        this.allocation = allocation;
+        this.paths = paths.toArray(new Path[paths.size()]);
+        channels = new FileChannel[paths.size()];
+        offsets = new long[paths.size() + 1];
+        for (int i = 0; i < channels.length; i++) {
+            offsets[i+1] = offsets[i] + lengths.get(i);
+            if (this.paths[i].getParent() != null) {
+                Files.createDirectories(this.paths[i].getParent());
+            }
+            channels[i] = FileChannel.open(this.paths[i],
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        allocatedChunks = new BitSet[paths.size()];
+        for (int i = 0; i < channels.length; i++) {
+            allocate(i);
+        }
+    }
+
+    private void allocate(int file) throws IOException {
+        long size = channels[file].size();
+        long length = getFileLength(file);
+        switch (allocation) {
+        case SPARSE:
+            if (size < length) {
+                channels[file].write(ByteBuffer.allocate(1), length - 1);
+            }
+            break;
+        case FULL:
+            fillWithZeros(file, size, length);
+            break;
+        case LAZY:
+            allocatedChunks[file] = new BitSet();
+            allocatedChunks[file].set(0, (int) ((Math.min(size, length) + ALLOCATION_CHUNK - 1) / ALLOCATION_CHUNK));
+            break;
+        }
+    }
+
+    /**
+     * In lazy mode, makes sure that the chunks of the file touched by a write are allocated
+     */
+    private void ensureAllocated(int file, long start, long end) throws IOException {
+        if (allocation != Allocation.LAZY) {
+            return;
+        }
+        BitSet chunks = allocatedChunks[file];
+        synchronized (chunks) {
+            for (int chunk = (int) (start / ALLOCATION_CHUNK); chunk <= (end - 1) / ALLOCATION_CHUNK; chunk++) {
+                if (!chunks.get(chunk)) {
+                    long chunkStart = chunk * ALLOCATION_CHUNK;
+                    fillWithZeros(file, chunkStart, Math.min(getFileLength(file), chunkStart + ALLOCATION_CHUNK));
+                    chunks.set(chunk);
+                }
+            }
+        }
+    }
+
+    private void fillWithZeros(int file, long from, long to) throws IOException {
+        while (from < to) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), to - from));
+            from += channels[file].write(zeros, from);
+        }
+    }
+
+    /**
+     * Writes all the data in the buffer, that doesn't go beyond the end of the file
+     */
+    protected abstract void writeToFile(int file, long filePosition, ByteBuffer data) throws IOException;
+
+    /**
+     * Same as {@link #writeToFile(int, long, ByteBuffer)} with several buffers, one after the other
+     */
+    protected void writeToFile(int file, long filePosition, ByteBuffer[] data) throws IOException {
+        for (ByteBuffer buffer : data) {
+            int count = buffer.remaining();
+            writeToFile(file, filePosition, buffer);
+            filePosition += count;
+        }
+    }
+
+    /**
+     * @return the number of bytes read, less than requested only if the end of the file is reached
+     */
+    protected abstract int readFromFile(int file, long filePosition, ByteBuffer buffer) throws IOException;
+
+    protected abstract long transferFromFile(int file, long filePosition, long count, WritableByteChannel target) throws IOException;
+
+    @Override
+    public long getLength() {
+        return offsets[offsets.length-1];
+    }
+
+    protected long getFileLength(int file) {
+        return offsets[file+1] - offsets[file];
+    }
+
+    @Override
+    public void write(long position, ByteBuffer data) throws IOException {
+        int limit = data.limit();
+        try {
+            while (data.hasRemaining()) {
+                int file = fileAt(position);
+                int count = (int) Math.min(data.remaining(), offsets[file+1] - position);
+                data.limit(data.position() + count);
+                ensureAllocated(file, position - offsets[file], position - offsets[file] + count);
+                writeToFile(file, position - offsets[file], data);
+                position += count;
+                data.limit(limit);
+            }
+        } finally {
+            data.limit(limit);
+        }
+    }
+
+    /**
+     * Data that falls in a single file is written with a single call, ranges that span several
+     * files are split buffer by buffer
+     */
+    @Override
+    public void write(long position, ByteBuffer[] data) throws IOException {
+        long count = 0;
+        for (ByteBuffer buffer : data) {
+            count += buffer.remaining();
+        }
+        if (count == 0) {
+            return;
+        }
+        int file = fileAt(position);
+        if (position + count <= offsets[file+1]) {
+            ensureAllocated(file, position - offsets[file], position - offsets[file] + count);
+            writeToFile(file, position - offsets[file], data);
+        } else {
+            StorageBackend.super.write(position, data);
+        }
+    }
+
+    @Override
+    public int read(long position, ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        int total = 0;
+        try {
+            while (buffer.hasRemaining() && position < getLength()) {
+                int file = fileAt(position);
+                int count = (int) Math.min(buffer.remaining(), offsets[file+1] - position);
+                buffer.limit(buffer.position() + count);
+                int read = readFromFile(file, position - offsets[file], buffer);
+                total += read;
+                if (read < count) {
+                    break;
+                }
+                position += count;
+                buffer.limit(limit);
+            }
+            return total;
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Transfers data from a single file, so it can transfer less than requested even if the
+     * target accepts more
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        int file = fileAt(position);
+        return transferFromFile(file, position - offsets[file], Math.min(count, offsets[file+1] - position), target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * @return the index of the file that contains the byte at the given position. Empty files
+     * never contain any byte.
+     */
+    private int fileAt(long position) {
+        if (position < 0 || position >= getLength()) {
+            throw new IndexOutOfBoundsException("Position "+position+" is out of the torrent");
+        }
+        int index = Arrays.binarySearch(offsets, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // skip empty files starting at the same position
+        while (offsets[index+1] == position) {
+            index++;
+        }
+        return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+}
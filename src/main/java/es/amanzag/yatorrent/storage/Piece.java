@@ -5,11 +5,10 @@ package es.amanzag.yatorrent.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -20,33 +19,55 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import es.amanzag.yatorrent.metafile.TorrentMetadata;
+import es.amanzag.yatorrent.util.BufferPool;
 
 /**
  * @author Alberto Manzaneque
  *
+ * Blocks received in order are kept in memory and written all together when the piece is
+ * complete, unless the {@link WriteBackCache} runs out of room before. The completion of a piece
+ * includes the data still in memory.
  */
 public class Piece {
 
     private final static Logger logger = LoggerFactory.getLogger(Piece.class);
+    private final static int READ_CHUNK = 16 * 1024;
 	
-	private int index, length, completion;
+	private int index, length;
+	/** Written by the disk threads and read by the network threads to pick pieces */
+	private volatile int completion;
 	private boolean locked;
-	private byte[] checksum;
-	private FileChannel dataChannel;
+	/** Read from the disk threads when the progress is saved */
+	private volatile boolean verified;
+	private StorageBackend backend;
 	private TorrentMetadata metadata;
 	private List<PieceListener> listeners;
 	private SortedSet<Block> outOfOrderBlocks;
+	private MessageDigest digest;
+	private int hashedBytes;
+	private List<ByteBuffer> dirtyBlocks;
+	private int dirtyBytes;
+	/** Offset in the piece of the first block in memory */
+	private int dirtyOffset;
+	private WriteBackCache cache;
+	private ReadCache readCache;
 	
-	public Piece(int index, int length, byte[] checksum, FileChannel dataChannel, TorrentMetadata metadata) {
+	public Piece(int index, int length, StorageBackend backend, WriteBackCache cache, ReadCache readCache, TorrentMetadata metadata) {
 		this.index = index;
 		this.length = length;
-		this.checksum = checksum;
 		this.completion = 0;
-		this.dataChannel = dataChannel;
+		this.backend = backend;
 		this.metadata = metadata;
 		locked = false;
+		verified = false;
 		listeners = new LinkedList<>();
 		outOfOrderBlocks = new TreeSet<>();
+		digest = null;
+		hashedBytes = 0;
+		dirtyBlocks = new ArrayList<>();
+		dirtyBytes = 0;
+		this.cache = cache;
+		this.readCache = readCache;
 	}
 	
 	public int getCompletion() {
@@ -65,13 +86,70 @@ public class Piece {
 	}
 
 	public byte[] getChecksum() {
-		return checksum;
+		return metadata.getPieceHash(index);
+	}
+	
+	/**
+	 * @return the completion of the piece not counting the data still in memory
+	 */
+	synchronized int getWrittenCompletion() {
+	    return dirtyBlocks.isEmpty() ? completion : dirtyOffset;
 	}
 	
 	public boolean isComplete() {
 		return length == completion;
 	}
+	
+	/**
+	 * @return true if the piece is complete and its data matches the checksum, so it can be shared
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+	
+	public void setVerified(boolean verified) {
+	    if(verified && !isComplete()) {
+	        throw new IllegalStateException("Piece "+index+" can't be verified before it is complete");
+	    }
+		this.verified = verified;
+	}
+	
+	/**
+	 * Discards all the data of the piece, so it can be downloaded again
+	 */
+	public void reset() {
+	    if(locked) {
+	        throw new IllegalStateException("Can't reset piece "+index+" while it is being downloaded");
+	    }
+	    discardOutOfOrderBlocks();
+	    discardDirtyBlocks();
+	    readCache.invalidate(this);
+	    verified = false;
+	    digest = null;
+	    hashedBytes = 0;
+	    markCompleted(-completion);
+	}
 
+	private void discardOutOfOrderBlocks() {
+	    for (Block block : outOfOrderBlocks) {
+	        BufferPool.getDefault().release(block.data);
+	    }
+	    outOfOrderBlocks.clear();
+	}
+	
+	private void discardDirtyBlocks() {
+	    int discarded;
+	    synchronized (this) {
+	        dirtyBlocks.forEach(BufferPool.getDefault()::release);
+	        dirtyBlocks.clear();
+	        discarded = dirtyBytes;
+	        dirtyBytes = 0;
+	    }
+	    if(discarded > 0) {
+	        cache.removed(this, discarded, false);
+	    }
+	}
+	
 	public int getIndex() {
 		return index;
 	}
@@ -99,34 +177,87 @@ public class Piece {
 	}
 	
 	public void write(ByteBuffer data) throws IOException {
-	    if(!locked) {
-            throw new IllegalStateException("Piece "+index+" is not locked so is not writable");
-        }
-	    if(data.remaining() > length - completion) {
-	        throw new TorrentStorageException("Tried to write more bytes than remainin in this piece");
+	    write(getCompletion(), data);
+	}
+	
+	/**
+	 * Takes a block that goes right after the data received so far. The buffer is owned by the
+	 * piece from now on.
+	 */
+	private void append(ByteBuffer block) throws IOException {
+	    int count = block.remaining();
+	    updateDigest(block.duplicate());
+	    synchronized (this) {
+	        if(dirtyBlocks.isEmpty()) {
+	            dirtyOffset = completion;
+	        }
+	        dirtyBlocks.add(block);
+	        dirtyBytes += count;
 	    }
-        int toWrite = data.remaining();
-        dataChannel.position(index * metadata.getPieceLength() + completion);
-        int written = dataChannel.write(data);
-        if(toWrite != written) {
-            throw new IOException("Not all data could be written");
-        }
-        markCompleted(written);
+	    markCompleted(count);
+	    cache.added(this, count);
+	    if(isComplete()) {
+	        try {
+	            flush();
+	        } catch (IOException e) {
+	            // kept in memory, it will be retried when the piece is read or saved
+	            logger.warn("Error writing piece "+index, e);
+	        }
+	    }
+	}
+	
+	/**
+	 * Writes the blocks in memory to the storage, in a single write
+	 */
+	void flush() throws IOException {
+	    int flushed;
+	    synchronized (this) {
+	        if(dirtyBlocks.isEmpty()) {
+	            return;
+	        }
+	        ByteBuffer[] blocks = dirtyBlocks.toArray(new ByteBuffer[dirtyBlocks.size()]);
+	        backend.write(getPosition() + dirtyOffset, blocks);
+	        dirtyBlocks.forEach(BufferPool.getDefault()::release);
+	        dirtyBlocks.clear();
+	        flushed = dirtyBytes;
+	        dirtyBytes = 0;
+	    }
+	    cache.removed(this, flushed, true);
 	}
 	
 	public void write(int offset, ByteBuffer data) throws IOException {
+	    ByteBuffer copy = BufferPool.getDefault().acquire(data.remaining());
+	    copy.put(data);
+	    copy.flip();
+	    writeBlock(offset, copy);
+	}
+	
+	/**
+	 * Same as {@link #write(int, ByteBuffer)}, but the block is not copied. It must come from the
+	 * {@link BufferPool} and it is owned by the piece from now on.
+	 */
+	void writeBlock(int offset, ByteBuffer block) throws IOException {
+	    if(!locked) {
+	        BufferPool.getDefault().release(block);
+	        throw new IllegalStateException("Piece "+index+" is not locked so is not writable");
+	    }
+	    if(offset + block.remaining() > length) {
+	        BufferPool.getDefault().release(block);
+	        throw new TorrentStorageException("Tried to write more bytes than remainin in this piece");
+	    }
 	    if (offset == getCompletion()) {
-	        write(data);
+	        append(block);
 	        try {
 	            Block first = outOfOrderBlocks.first();
 	            while (true) {
 	                if(first.offset == getCompletion()) {
-	                    write(first.data);
 	                    outOfOrderBlocks.remove(first);
+	                    append(first.data);
 	                    first = outOfOrderBlocks.first();
 	                } else if(first.offset < getCompletion()) {
 	                    logger.warn("Out of order block is behind current completion. Discarding block");
 	                    outOfOrderBlocks.remove(first);
+	                    BufferPool.getDefault().release(first.data);
 	                } else {
 	                    break;
 	                }
@@ -135,12 +266,10 @@ public class Piece {
 	            // no out of order blocks, carry on
 	        }
 	    } else if (offset < getCompletion()) {
+	        BufferPool.getDefault().release(block);
 	        throw new TorrentStorageException("Tried to write data that was already written");
 	    } else {
-	        ByteBuffer clone = ByteBuffer.allocate(data.remaining());
-	        clone.put(data);
-	        clone.flip();
-	        outOfOrderBlocks.add(new Block(offset, clone));
+	        outOfOrderBlocks.add(new Block(offset, block));
 	    }
 	}
 	
@@ -148,19 +277,185 @@ public class Piece {
 	    if(!isComplete()) {
 	        throw new IllegalStateException("Piece "+index+"is not complete so is not readable");
 	    }
-	    dataChannel.position(index * metadata.getPieceLength() + offset);
-	    dataChannel.read(buffer);
+	    ReadCache.Entry cached = verified ? readCache.pin(this) : null;
+	    if(cached != null) {
+	        try {
+	            ByteBuffer view = cached.data().duplicate();
+	            view.limit(Math.min(length, offset + buffer.remaining()));
+	            view.position(offset);
+	            buffer.put(view);
+	        } finally {
+	            readCache.unpin(cached);
+	        }
+	        return;
+	    }
+	    flush();
+	    backend.read(getPosition() + offset, buffer);
 	}
 	
-	public boolean validateData() throws IOException {
+	/**
+	 * Sends part of the piece to the channel, from the read cache or from the file without copying
+	 * it through the heap. A piece that isn't cached is never read into memory here.
+	 * @return the number of bytes transferred, that can be less than requested
+	 */
+	public long transferTo(int offset, int length, WritableByteChannel target) throws IOException {
+	    if(!isComplete()) {
+	        throw new IllegalStateException("Piece "+index+"is not complete so is not readable");
+	    }
+	    ReadCache.Entry cached = verified ? readCache.pin(this) : null;
+	    if(cached != null) {
+	        try {
+	            ByteBuffer view = cached.data().duplicate();
+	            view.limit(offset + length);
+	            view.position(offset);
+	            return target.write(view);
+	        } finally {
+	            readCache.unpin(cached);
+	        }
+	    }
+	    flush();
+	    return backend.transferTo(getPosition() + offset, length, target);
+	}
+	
+	/**
+	 * Reads the whole piece into the {@link ReadCache} if it isn't there yet, so the next reads
+	 * don't touch the disk. It blocks on the disk, so it must only be called from the disk threads.
+	 * @return whether the piece is now in the cache
+	 */
+	boolean preload() throws IOException {
+	    if(!verified) {
+	        return false;
+	    }
+	    if(readCache.contains(this)) {
+	        return true;
+	    }
+	    flush();
+	    ByteBuffer data = readCache.allocate(length);
+	    boolean read = false;
 	    try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(dataChannel.map(MapMode.READ_ONLY, index * metadata.getPieceLength(), length));
-            byte[] calculatedChecksum = md.digest();
-            return Arrays.equals(checksum, calculatedChecksum);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+	        read = backend.read(getPosition(), data) == length;
+	    } finally {
+	        if(!read) {
+	            readCache.discard(data);
+	        }
+	    }
+	    if(!read) {
+	        return false;
+	    }
+	    data.flip();
+	    readCache.put(this, data);
+	    return true;
+	}
+	
+	/**
+	 * @return whether the piece can be read without touching the disk
+	 */
+	public boolean isCached() {
+	    return verified && readCache.contains(this);
+	}
+	
+	/**
+	 * Records that a peer asked for this piece
+	 * @return whether several peers want it, so it is worth reading it whole into the
+	 * {@link ReadCache}
+	 */
+	public boolean isHot(Object requester) {
+	    return verified && readCache.isHot(this, requester);
+	}
+	
+	/**
+	 * Blocks are always appended in order, so the digest is fed with them from memory and the
+	 * piece doesn't need to be read again to be validated. Only the bytes that weren't seen
+	 * by the digest (data written before a restart) are read from disk.
+	 */
+	private void updateDigest(ByteBuffer writtenData) throws IOException {
+	    if(hashedBytes < completion) {
+	        hashFromDisk(completion);
+	    }
+	    hashedBytes += writtenData.remaining();
+	    getDigest().update(writtenData);
+	}
+	
+	private void hashFromDisk(int end) throws IOException {
+	    if(!hashFromDisk(getDigest(), hashedBytes, end)) {
+	        throw new IOException("Data of piece "+index+" is shorter than expected");
+	    }
+	    hashedBytes = end;
+	}
+	
+	/**
+	 * @return false if the data on disk ends before the end of the range
+	 */
+	private boolean hashFromDisk(MessageDigest md, int start, int end) throws IOException {
+	    ByteBuffer buffer = BufferPool.getDefault().acquire(READ_CHUNK);
+	    try {
+	        for (int position = start; position < end; position += READ_CHUNK) {
+	            buffer.clear();
+	            buffer.limit(Math.min(READ_CHUNK, end - position));
+	            if(backend.read(getPosition() + position, buffer) < buffer.limit()) {
+	                return false;
+	            }
+	            buffer.flip();
+	            md.update(buffer);
+	        }
+	        return true;
+	    } finally {
+	        BufferPool.getDefault().release(buffer);
+	    }
+	}
+	
+	private MessageDigest getDigest() {
+	    if(digest == null) {
+	        digest = newDigest();
+	    }
+	    return digest;
+	}
+	
+	private static MessageDigest newDigest() {
+	    try {
+	        return MessageDigest.getInstance("SHA-1");
+	    } catch (NoSuchAlgorithmException e) {
+	        throw new RuntimeException(e);
+	    }
+	}
+	
+	/**
+	 * Hashes the data on disk, independently from the data being downloaded
+	 * @return false if the data doesn't match the checksum or it is incomplete
+	 */
+	boolean checkDataOnDisk() throws IOException {
+	    MessageDigest md = newDigest();
+	    return hashFromDisk(md, 0, length) && metadata.pieceHashMatches(index, md.digest());
+	}
+	
+	/**
+	 * Overrides the state of the piece without notifying the listeners
+	 */
+	void restoreState(int completion, boolean verified) {
+	    if(locked) {
+	        throw new IllegalStateException("Can't restore piece "+index+" while it is being downloaded");
+	    }
+	    discardOutOfOrderBlocks();
+	    discardDirtyBlocks();
+	    readCache.invalidate(this);
+	    digest = null;
+	    hashedBytes = 0;
+	    this.completion = completion;
+	    this.verified = verified;
+	}
+	
+	public boolean validateData() throws IOException {
+	    if(hashedBytes < length) {
+	        hashFromDisk(length);
+	    }
+	    byte[] calculatedChecksum = getDigest().digest();
+	    digest = null;
+	    hashedBytes = 0;
+	    return metadata.pieceHashMatches(index, calculatedChecksum);
+	}
+	
+	long getPosition() {
+	    return (long) index * metadata.getPieceLength();
 	}
 	
 	public void addListener(PieceListener listener) {
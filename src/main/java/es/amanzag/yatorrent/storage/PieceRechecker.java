@@ -0,0 +1,99 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.eventbus.EventBus;
+
+import es.amanzag.yatorrent.events.RecheckProgressEvent;
+import es.amanzag.yatorrent.protocol.BitField;
+
+/**
+ * Verifies the checksum of every piece on disk, splitting the work across the threads of a
+ * {@link ForkJoinPool}. Each leaf task checks a run of consecutive pieces of up to
+ * {@link #MAX_TASK_SIZE} bytes, so reads stay sequential within a task.
+ */
+class PieceRechecker {
+
+    private final static long MAX_TASK_SIZE = 16 * 1024 * 1024;
+
+    private List<Piece> pieces;
+    private EventBus eventBus;
+    private BitField result;
+    private AtomicInteger checkedPieces;
+    private int piecesPerTask;
+    private int progressStep;
+
+    PieceRechecker(List<Piece> pieces, EventBus eventBus) {
+        this.pieces = pieces;
+        this.eventBus = eventBus;
+        result = new BitField(pieces.size());
+        checkedPieces = new AtomicInteger();
+        piecesPerTask = (int) Math.max(1, MAX_TASK_SIZE / pieces.get(0).getLength());
+        progressStep = Math.max(1, pieces.size() / 100);
+    }
+
+    /**
+     * @return the pieces whose data matches the checksum
+     */
+    BitField recheck(ForkJoinPool pool) throws IOException {
+        try {
+            pool.invoke(new RangeTask(0, pieces.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    private void publishProgress(int checked) {
+        RecheckProgressEvent e = new RecheckProgressEvent();
+        e.checkedPieces = checked;
+        e.totalPieces = pieces.size();
+        eventBus.post(e);
+    }
+
+    private class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int from, to;
+
+        RangeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= piecesPerTask) {
+                try {
+                    checkPieces();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle), new RangeTask(middle, to));
+            }
+        }
+
+        private void checkPieces() throws IOException {
+            for (int i = from; i < to; i++) {
+                if (pieces.get(i).checkDataOnDisk()) {
+                    synchronized (result) {
+                        result.setPresent(i, true);
+                    }
+                }
+                int checked = checkedPieces.incrementAndGet();
+                if (checked % progressStep == 0 || checked == pieces.size()) {
+                    publishProgress(checked);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Checks the SHA-1 of completed pieces in a bounded pool of worker threads, so the threads that
+ * hand over the pieces never hash them. When the queue of the pool is full the pieces wait in an
+ * overflow list, and they are moved to the pool as the workers finish the pieces in front of them
+ * or when {@link #resubmitPending()} is called.
+ */
+public class PieceVerifier {
+
+    private final static Logger logger = LoggerFactory.getLogger(PieceVerifier.class);
+
+    private ThreadPoolExecutor executor;
+    private Queue<Runnable> overflow;
+
+    public PieceVerifier(int threads, int queueSize) {
+        overflow = new ConcurrentLinkedQueue<>();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("hasher-%d").setDaemon(true).build(),
+                (task, executor) -> {
+                    if (!executor.isShutdown()) {
+                        overflow.add(task);
+                    }
+                });
+    }
+
+    /**
+     * @param callback receives whether the data of the piece matches its checksum. It is
+     * invoked from a hashing thread
+     */
+    public void verify(Piece piece, Consumer<Boolean> callback) {
+        if (!piece.isComplete()) {
+            throw new IllegalStateException("Piece "+piece.getIndex()+" is not complete so it can't be verified");
+        }
+        executor.execute(() -> {
+            boolean valid;
+            try {
+                valid = piece.validateData();
+            } catch (IOException e) {
+                logger.error("Error reading piece "+piece.getIndex()+" to verify it", e);
+                valid = false;
+            }
+            callback.accept(valid);
+            resubmitPending();
+        });
+    }
+
+    /**
+     * Moves the pieces waiting in the overflow list to the queue of the pool while there is room.
+     * The workers do it after every piece, it only has to be called periodically in case a piece
+     * overflowed just when the pool was running out of work.
+     */
+    public void resubmitPending() {
+        Runnable task;
+        while (executor.getQueue().remainingCapacity() > 0 && (task = overflow.poll()) != null) {
+            executor.execute(task);
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+}
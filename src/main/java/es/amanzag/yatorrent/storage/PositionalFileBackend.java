@@ -0,0 +1,63 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Reads and writes the files with positional I/O, which doesn't touch the position of the channels
+ */
+class PositionalFileBackend extends MultiFileBackend {
+
+    PositionalFileBackend(Allocation allocation, List<Path> paths, List<Long> lengths) throws IOException {
+        super(allocation, paths, lengths);
+    }
+
+    @Override
+    protected void writeToFile(int file, long filePosition, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            filePosition += channels[file].write(data, filePosition);
+        }
+    }
+
+    /**
+     * FileChannel has no positional gathering write, so the position of the channel is moved while
+     * holding its lock. The rest of the operations are positional and don't care about it.
+     */
+    @Override
+    protected void writeToFile(int file, long filePosition, ByteBuffer[] data) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : data) {
+            remaining += buffer.remaining();
+        }
+        FileChannel channel = channels[file];
+        synchronized (channel) {
+            channel.position(filePosition);
+            while (remaining > 0) {
+                remaining -= channel.write(data);
+            }
+        }
+    }
+
+    @Override
+    protected int readFromFile(int file, long filePosition, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channels[file].read(buffer, filePosition + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    protected long transferFromFile(int file, long filePosition, long count, WritableByteChannel target) throws IOException {
+        return channels[file].transferTo(filePosition, count, target);
+    }
+
+}
@@ -0,0 +1,207 @@
+package es.amanzag.yatorrent.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import es.amanzag.yatorrent.events.ReadCacheStatsEvent;
+
+/**
+ * Keeps whole pieces in memory while several peers are downloading them, so their blocks are read
+ * from disk only once. The pieces used least recently are dropped when the memory limit is reached.
+ * There is one cache for all the torrents, so the memory used doesn't grow with the number of
+ * torrents.
+ * <p>
+ * Most pieces are only uploaded to one peer, and those are better sent straight from the file to
+ * the socket. A piece is only cached once it is hot, when a second peer asks for it while it is
+ * still remembered as recently requested.
+ * <p>
+ * The pieces are kept in direct buffers that are reused for the next pieces of the same length.
+ * Readers pin an entry while they use it, so its buffer isn't reused under them after eviction.
+ * The cache only stores buffers, the pieces read themselves from disk and never do it holding the
+ * lock of the cache.
+ */
+public class ReadCache {
+
+    /** How many recently requested pieces are remembered to detect the hot ones */
+    private static final int MAX_REQUESTED = 1024;
+
+    private long maxBytes;
+    private long cachedBytes;
+    private long freeBytes;
+    private long hits;
+    private long misses;
+    private Map<Piece, Entry> pieces;
+    private Map<Piece, Object> requested;
+    private Map<Integer, Deque<ByteBuffer>> free;
+
+    static class Entry {
+        private final ByteBuffer data;
+        private int pins;
+        private boolean evicted;
+
+        private Entry(ByteBuffer data) {
+            this.data = data;
+        }
+
+        /**
+         * @return the data of the whole piece. The buffer must not be modified, use a duplicate.
+         */
+        ByteBuffer data() {
+            return data;
+        }
+    }
+
+    public ReadCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        pieces = new LinkedHashMap<>(16, 0.75f, true);
+        requested = new LinkedHashMap<>(16, 0.75f, true);
+        free = new HashMap<>();
+    }
+
+    /**
+     * Pins the entry of a piece so it can be read, it must be released with {@link #unpin(Entry)}
+     * @return the entry, or null if the piece isn't in the cache
+     */
+    synchronized Entry pin(Piece piece) {
+        Entry entry = pieces.get(piece);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.pins++;
+        return entry;
+    }
+
+    synchronized void unpin(Entry entry) {
+        entry.pins--;
+        if (entry.evicted && entry.pins == 0) {
+            recycle(entry.data);
+        }
+    }
+
+    synchronized boolean contains(Piece piece) {
+        return pieces.containsKey(piece);
+    }
+
+    /**
+     * Records a request for a piece
+     * @param requester who is asking for the piece, usually the connection of the peer
+     * @return whether the piece is wanted by more than one requester and is worth caching
+     */
+    synchronized boolean isHot(Piece piece, Object requester) {
+        if (piece.getLength() > maxBytes) {
+            return false;
+        }
+        if (pieces.containsKey(piece)) {
+            return true;
+        }
+        Object first = requested.get(piece);
+        if (first == null) {
+            requested.put(piece, requester);
+            if (requested.size() > MAX_REQUESTED) {
+                Iterator<Object> eldest = requested.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            return false;
+        }
+        if (first == requester) {
+            return false;
+        }
+        requested.remove(piece);
+        return true;
+    }
+
+    /**
+     * @return a direct buffer to read a piece into, reused from an evicted piece if possible. It
+     * must be given to {@link #put(Piece, ByteBuffer)} or back to {@link #discard(ByteBuffer)}.
+     */
+    synchronized ByteBuffer allocate(int length) {
+        Deque<ByteBuffer> buffers = free.get(length);
+        if (buffers != null && !buffers.isEmpty()) {
+            freeBytes -= length;
+            ByteBuffer buffer = buffers.poll();
+            buffer.clear();
+            return buffer;
+        }
+        // buffers of other lengths won't be used soon, leave room for the new one
+        trimFree(maxBytes - cachedBytes - length);
+        return ByteBuffer.allocateDirect(length);
+    }
+
+    synchronized void discard(ByteBuffer buffer) {
+        recycle(buffer);
+    }
+
+    synchronized void put(Piece piece, ByteBuffer data) {
+        requested.remove(piece);
+        Entry previous = pieces.put(piece, new Entry(data));
+        if (previous != null) {
+            evict(previous);
+        }
+        cachedBytes += data.capacity();
+        Iterator<Entry> eldest = pieces.values().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            evict(entry);
+        }
+    }
+
+    synchronized void invalidate(Piece piece) {
+        requested.remove(piece);
+        Entry entry = pieces.remove(piece);
+        if (entry != null) {
+            evict(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        cachedBytes -= entry.data.capacity();
+        entry.evicted = true;
+        if (entry.pins == 0) {
+            recycle(entry.data);
+        }
+    }
+
+    /**
+     * Keeps a buffer for the next piece of the same length, as long as the cached pieces and the
+     * free buffers fit in the memory limit
+     */
+    private void recycle(ByteBuffer buffer) {
+        if (cachedBytes + freeBytes + buffer.capacity() > maxBytes) {
+            return;
+        }
+        free.computeIfAbsent(buffer.capacity(), k -> new ArrayDeque<>()).push(buffer);
+        freeBytes += buffer.capacity();
+    }
+
+    private void trimFree(long limit) {
+        Iterator<Deque<ByteBuffer>> it = free.values().iterator();
+        while (freeBytes > limit && it.hasNext()) {
+            Deque<ByteBuffer> buffers = it.next();
+            while (freeBytes > limit && !buffers.isEmpty()) {
+                freeBytes -= buffers.poll().capacity();
+            }
+            if (buffers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized ReadCacheStatsEvent getStats() {
+        ReadCacheStatsEvent e = new ReadCacheStatsEvent();
+        e.hits = hits;
+        e.misses = misses;
+        e.cachedBytes = cachedBytes;
+        e.cachedPieces = pieces.size();
+        return e;
+    }
+
+}
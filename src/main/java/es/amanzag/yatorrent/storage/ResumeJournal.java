@@ -0,0 +1,143 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable state of the pieces of a torrent, that is, how many bytes of each piece are safely on
+ * disk. A piece whose state is its length is complete and verified.
+ * <p>
+ * The state file is a snapshot with the state of every piece, and the changes made after it are
+ * appended to a journal as (piece, state) records, so saving the progress only costs a few bytes
+ * per changed piece. The journal is merged into the snapshot when it grows bigger than it.
+ * Replaying the journal over the snapshot always gives the last state, even if the process died
+ * in the middle of a compaction.
+ */
+class ResumeJournal implements AutoCloseable {
+
+    private final static Logger logger = LoggerFactory.getLogger(ResumeJournal.class);
+
+    private final static int RECORD_SIZE = 8;
+    private final static int MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private File stateFile, journalFile;
+    private FileChannel journal;
+    private int[] recorded;
+    private long journalSize;
+
+    ResumeJournal(File stateFile, File journalFile, int numPieces) throws IOException {
+        this.stateFile = stateFile;
+        this.journalFile = journalFile;
+        recorded = new int[numPieces];
+        readSnapshot();
+        journal = FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+    }
+
+    private void readSnapshot() throws IOException {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(stateFile.toPath()));
+        for (int i = 0; i < recorded.length && snapshot.remaining() >= 4; i++) {
+            recorded[i] = snapshot.getInt();
+        }
+    }
+
+    private void replay() throws IOException {
+        // a record cut by a crash is dropped
+        journalSize = journal.size() - journal.size() % RECORD_SIZE;
+        ByteBuffer records = ByteBuffer.allocate((int) journalSize);
+        int read = 0;
+        while (records.hasRemaining() && read >= 0) {
+            read = journal.read(records, records.position());
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            int index = records.getInt();
+            int state = records.getInt();
+            if (index >= 0 && index < recorded.length) {
+                recorded[index] = state;
+            } else {
+                logger.warn("Discarding record of unknown piece {} in {}", index, journalFile);
+            }
+        }
+        journal.truncate(journalSize);
+    }
+
+    /**
+     * @return the last state saved of every piece
+     */
+    synchronized int[] getState() {
+        return recorded.clone();
+    }
+
+    /**
+     * Appends the pieces whose state is different from the last one saved. The data they refer to
+     * must be already persisted.
+     */
+    synchronized void record(int[] state) throws IOException {
+        int changed = 0;
+        for (int i = 0; i < recorded.length; i++) {
+            if (state[i] != recorded[i]) {
+                changed++;
+            }
+        }
+        if (changed == 0) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate(changed * RECORD_SIZE);
+        for (int i = 0; i < recorded.length; i++) {
+            if (state[i] != recorded[i]) {
+                records.putInt(i).putInt(state[i]);
+                recorded[i] = state[i];
+            }
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            journalSize += journal.write(records, journalSize);
+        }
+        journal.force(false);
+        if (journalSize > Math.max(MIN_COMPACTION_SIZE, recorded.length * 4L)) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes a new snapshot and empties the journal
+     */
+    synchronized void compact() throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        ByteBuffer snapshot = ByteBuffer.allocate(recorded.length * 4);
+        for (int state : recorded) {
+            snapshot.putInt(state);
+        }
+        snapshot.flip();
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                out.write(snapshot);
+            }
+            out.force(false);
+        }
+        Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journal.force(false);
+        journalSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+}
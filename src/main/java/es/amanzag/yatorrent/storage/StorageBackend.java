@@ -0,0 +1,92 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Where the data of a torrent is stored, seen as a continuous byte space. All the operations take
+ * absolute positions, so they can be used from different threads at the same time.
+ */
+public interface StorageBackend extends AutoCloseable {
+    
+    enum Type {
+        /** Positional reads and writes on the files of the torrent */
+        POSITIONAL,
+        /** Windows of the files of the torrent mapped in memory */
+        MAPPED,
+        /** Nothing is written to disk, for tests and benchmarks */
+        MEMORY
+    }
+    
+    /**
+     * How the space of each file of the torrent is reserved in the file system
+     */
+    enum Allocation {
+        /** The files get their final size when created, blocks are allocated as they are written */
+        SPARSE,
+        /** The files are filled with zeros when created, which keeps them contiguous */
+        FULL,
+        /** The files are filled with zeros in big chunks as the writes get to them */
+        LAZY
+    }
+    
+    long getLength();
+    
+    /**
+     * Writes all the data in the buffer
+     */
+    void write(long position, ByteBuffer data) throws IOException;
+    
+    /**
+     * Writes all the data in the buffers, one after the other, starting at the given position
+     */
+    default void write(long position, ByteBuffer[] data) throws IOException {
+        for (ByteBuffer buffer : data) {
+            int count = buffer.remaining();
+            write(position, buffer);
+            position += count;
+        }
+    }
+    
+    /**
+     * Fills the buffer unless the end of the data written so far is reached
+     * @return the number of bytes read
+     */
+    int read(long position, ByteBuffer buffer) throws IOException;
+    
+    /**
+     * @return the number of bytes transferred, that can be less than requested even if the target
+     * accepts more
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+    
+    /**
+     * Makes sure that everything written is persisted
+     */
+    void force() throws IOException;
+    
+    @Override
+    void close() throws IOException;
+    
+    /**
+     * @param allocation ignored by the backends that don't use files
+     * @param paths files of the torrent, in order
+     * @param lengths length of each of the files
+     */
+    static StorageBackend create(Type type, Allocation allocation, List<Path> paths, List<Long> lengths) throws IOException {
+        switch (type) {
+        case POSITIONAL:
+            return new PositionalFileBackend(allocation, paths, lengths);
+        case MAPPED:
+            return new MappedFileBackend(allocation, paths, lengths);
+        case MEMORY:
+            return new MemoryBackend(lengths.stream().mapToLong(Long::longValue).sum());
+        default:
+            throw new IllegalArgumentException("Unknown storage backend "+type);
+        }
+    }
+
+}
@@ -13,9 +13,10 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,34 +32,66 @@ import es.amanzag.yatorrent.util.ConfigManager;
 /**
  * @author Alberto Manzaneque
  *
+ * The data is written directly to the files of the torrent in the incoming directory, through the
+ * {@link StorageBackend} chosen for the torrent. Only the state of the download is kept in the temp
+ * directory, in a {@link ResumeJournal} that is updated every few seconds with {@link #sync()}.
  */
 public class TorrentStorage implements AutoCloseable {
     
     private final static Logger logger = LoggerFactory.getLogger(TorrentStorage.class);
 	
 	private final static String TORRENT_FILENAME = "torrent";
-	private final static String DATA_FILENAME = "data";
+	/** Single file where old versions kept the data until the download was complete */
+	private final static String LEGACY_DATA_FILENAME = "data";
+	private final static int MIGRATION_BUFFER_SIZE = 1024 * 1024;
 	private final static String STATE_FILENAME = "state";
+	private final static String JOURNAL_FILENAME = "journal";
 	
-	private File dataFile, stateFile, torrentFile, tempDir;
-	private FileChannel dataChannel, stateChannel;
+	private File torrentFile, tempDir;
+	private ResumeJournal journal;
+	private StorageBackend backend;
+	private WriteBackCache writeCache;
+	private ReadCache readCache;
+	/** Whether the data survives a restart, so the state file can be trusted */
+	private boolean persistent;
 	private TorrentMetadata metadata;
 	private List<Piece> pieces;
-	private int completedBytes;
+	/** Updated by the disk threads, it is reported periodically with {@link #reportCompletion()} */
+	private AtomicLong completedBytes;
+	private long reportedBytes;
+	private boolean commited;
 	private EventBus eventBus;
 	
-	public TorrentStorage(TorrentMetadata metadata, File tempTorrent, EventBus eventBus) throws IOException {
+	/**
+	 * @param readCache shared by all the torrents
+	 */
+	public TorrentStorage(TorrentMetadata metadata, File tempTorrent, EventBus eventBus, ReadCache readCache) throws IOException {
+		this(metadata, tempTorrent, eventBus, readCache,
+		        StorageBackend.Type.valueOf(ConfigManager.getStorageBackend().toUpperCase()));
+	}
+	
+	public TorrentStorage(TorrentMetadata metadata, File tempTorrent, EventBus eventBus, ReadCache readCache, StorageBackend.Type backendType) throws IOException {
 		tempDir = new File(ConfigManager.getTempDir()+"/"+metadata.getName());
 		
 		this.torrentFile = tempTorrent;
 		this.eventBus = eventBus;
-		dataFile = new File(tempDir, DATA_FILENAME);
-		stateFile = new File(tempDir, STATE_FILENAME);
 		this.metadata = metadata;
 		initFiles();
-		dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
-		stateChannel = new RandomAccessFile(stateFile, "rw").getChannel();
-		initPieces();
+		backend = openStorageBackend(backendType);
+		persistent = backendType != StorageBackend.Type.MEMORY;
+		if(persistent) {
+		    migrateLegacyData();
+		}
+		commited = false;
+		writeCache = new WriteBackCache(ConfigManager.getWriteCacheSize());
+		this.readCache = readCache;
+		int numPieces = metadata.getNumPieces();
+		int[] states = new int[numPieces];
+		if(persistent) {
+		    journal = new ResumeJournal(new File(tempDir, STATE_FILENAME), new File(tempDir, JOURNAL_FILENAME), numPieces);
+		    states = journal.getState();
+		}
+		initPieces(states);
 	}
 	
 	/**
@@ -85,74 +118,167 @@ public class TorrentStorage implements AutoCloseable {
             }
         }
 		torrentFile = tmp;
-		
-		if(!stateFile.exists()) {
-		    try (FileChannel out = new FileOutputStream(stateFile).getChannel()) {
-		        int numPieces = metadata.getPieceHashes().size();
-		        ByteBuffer zero = ByteBuffer.wrap(new byte[] {0,0,0,0});
-		        for(int i=0; i<numPieces; i++) {
-		            out.write(zero);
-		            zero.clear();
-		        }
-		    }
-		}
-		
 	}
 	
-	private void initPieces() throws IOException {
-		ByteBuffer states = ByteBuffer.allocate((int)stateChannel.size());
-		stateChannel.position(0);
-		stateChannel.read(states);
-		states.flip();
-		pieces = new ArrayList<Piece>(metadata.getPieceHashes().size());
-		Piece tmpPiece = null;
-		List<byte[]> pieceHashes = metadata.getPieceHashes();
-		for(int i=0; i < pieceHashes.size() - 1; i++) {
-			tmpPiece = new Piece(i, metadata.getPieceLength(), pieceHashes.get(i), dataChannel, metadata);
-			tmpPiece.markCompleted(states.getInt());
+	private StorageBackend openStorageBackend(StorageBackend.Type type) throws IOException {
+	    Path baseDir = Paths.get(ConfigManager.getIncomingDir()).resolve(metadata.getDirectory());
+	    List<Path> paths = new ArrayList<>();
+	    List<Long> lengths = new ArrayList<>();
+	    for (ContainedFile cf : metadata.getFiles()) {
+	        paths.add(baseDir.resolve(cf.getName()));
+	        lengths.add(cf.getLength());
+	    }
+	    if(type != StorageBackend.Type.MEMORY) {
+	        checkFreeSpace(baseDir, paths, lengths);
+	    }
+	    return StorageBackend.create(type, 
+	            StorageBackend.Allocation.valueOf(ConfigManager.getAllocationMode().toUpperCase()), 
+	            paths, lengths);
+	}
+	
+	/**
+	 * Fails if the files of the torrent can't grow up to their final size. Sparse files count
+	 * as allocated, so this is only accurate for new downloads and the other allocation modes.
+	 */
+	private void checkFreeSpace(Path baseDir, List<Path> paths, List<Long> lengths) throws IOException {
+	    long needed = 0;
+	    for (int i = 0; i < paths.size(); i++) {
+	        long existing = Files.exists(paths.get(i)) ? Files.size(paths.get(i)) : 0;
+	        needed += Math.max(0, lengths.get(i) - existing);
+	    }
+	    Path existingDir = baseDir.toAbsolutePath();
+	    while (!Files.exists(existingDir)) {
+	        existingDir = existingDir.getParent();
+	    }
+	    long usable = Files.getFileStore(existingDir).getUsableSpace();
+	    if(needed > usable) {
+	        throw new IOException("Not enough space for "+metadata.getName()+" in "+existingDir+
+	                ", "+needed+" bytes needed but only "+usable+" available");
+	    }
+	}
+	
+	/**
+	 * Moves the data of a download started by an old version into the files of the torrent
+	 */
+	private void migrateLegacyData() throws IOException {
+	    File legacyData = new File(tempDir, LEGACY_DATA_FILENAME);
+	    if(!legacyData.isFile()) {
+	        return;
+	    }
+	    logger.info("Moving data of {} to {}", metadata.getName(), ConfigManager.getIncomingDir());
+	    try (FileChannel in = new RandomAccessFile(legacyData, "r").getChannel()) {
+	        ByteBuffer buffer = ByteBuffer.allocateDirect(MIGRATION_BUFFER_SIZE);
+	        long position = 0;
+	        long size = Math.min(in.size(), backend.getLength());
+	        while (position < size) {
+	            buffer.clear();
+	            int read = in.read(buffer, position);
+	            if (read < 0) {
+	                break;
+	            }
+	            buffer.flip();
+	            buffer.limit((int) Math.min(buffer.limit(), size - position));
+	            int count = buffer.remaining();
+	            backend.write(position, buffer);
+	            position += count;
+	        }
+	    }
+	    backend.force();
+	    Files.delete(legacyData.toPath());
+	}
+	
+	private void initPieces(int[] states) throws IOException {
+		int numPieces = metadata.getNumPieces();
+		pieces = new ArrayList<Piece>(numPieces);
+		for(int i=0; i < numPieces; i++) {
+			int length = i < numPieces - 1 
+			        ? metadata.getPieceLength() 
+			        : (int) (metadata.getTotalLength() - (long) (numPieces - 1) * metadata.getPieceLength());
+			Piece tmpPiece = new Piece(i, length, backend, writeCache, readCache, metadata);
+			tmpPiece.markCompleted(states[i]);
+			tmpPiece.setVerified(tmpPiece.isComplete());
 			pieces.add(tmpPiece);
 			logger.debug("Piece {} is complete: {}", tmpPiece.getIndex(), tmpPiece.isComplete());
 		}
 		
-		tmpPiece = new Piece(
-		        pieceHashes.size() - 1, 
-		        (int)metadata.getTotalLength()  %metadata.getPieceLength(), 
-		        pieceHashes.get(pieceHashes.size()-1),
-		        dataChannel,
-		        metadata);
-		pieces.add(tmpPiece);
-		tmpPiece.markCompleted(states.getInt());	
-		logger.debug("Piece {} is complete: {}", tmpPiece.getIndex(), tmpPiece.isComplete());
-		
-		completedBytes = 0;
+		completedBytes = new AtomicLong();
+		reportedBytes = -1;
 		for (Piece p : pieces) {
-		    completedBytes += p.getCompletion();
-            p.addListener((newBytes, completedBytes, totalBytes) -> {
-                this.completedBytes += newBytes;
-                publishCompletionChangedEvent();
-            });
+		    completedBytes.addAndGet(p.getCompletion());
+            p.addListener((newBytes, completedBytes, totalBytes) -> this.completedBytes.addAndGet(newBytes));
         }
-		publishCompletionChangedEvent();
+		reportCompletion();
 	}
 	
-	private void publishCompletionChangedEvent() {
-        CompletionChangedEvent e = new CompletionChangedEvent();
-        e.completedBytes = completedBytes;
-        e.totalBytes = metadata.getTotalLength();
-        eventBus.post(e);
+	/**
+	 * Publishes the bytes completed if they changed since the last time
+	 */
+	public void reportCompletion() {
+	    long bytes = completedBytes.get();
+	    if(bytes != reportedBytes) {
+	        reportedBytes = bytes;
+	        CompletionChangedEvent e = new CompletionChangedEvent();
+	        e.completedBytes = bytes;
+	        e.totalBytes = metadata.getTotalLength();
+	        eventBus.post(e);
+	    }
 	}
 	
+	/**
+	 * Saves the progress made with the data already written. The data still in the write cache
+	 * is left there, it will be saved once it reaches the disk.
+	 */
+	public void sync() throws IOException {
+	    if(!persistent) {
+	        return;
+	    }
+	    int[] states = new int[pieces.size()];
+	    for (Piece piece : pieces) {
+	        int written = piece.getWrittenCompletion();
+	        // pieces whose hash hasn't been checked yet can't be trusted after a restart
+	        states[piece.getIndex()] = written == piece.getLength() && !piece.isVerified() ? 0 : written;
+	    }
+	    // the data must be on disk before the state that refers to it
+	    backend.force();
+	    journal.record(states);
+	}
+	
+	/**
+	 * Writes everything in memory and saves the state of the download in a new snapshot
+	 */
 	public void forceSave() throws IOException {
-		dataChannel.force(false);
-		
-		ByteBuffer buf = ByteBuffer.allocate(pieces.size()*4);
-		for (Piece ch : pieces) {
-			buf.putInt(ch.getCompletion());
+		writeCache.flushAll();
+		if(!persistent) {
+		    backend.force();
+		    return;
 		}
-		buf.flip();
-		stateChannel.position(0);
-		stateChannel.write(buf);
-		stateChannel.force(false);
+		sync();
+		journal.compact();
+	}
+	
+	/**
+	 * Verifies all the pieces in the data file, no matter what the state file says, and
+	 * updates the state of the pieces with the result
+	 * @return the pieces whose data is correct
+	 */
+	public BitField recheck(ForkJoinPool pool) throws IOException {
+	    logger.info("Checking existing data of {}", metadata.getName());
+	    BitField valid = new PieceRechecker(pieces, eventBus).recheck(pool);
+	    long bytes = 0;
+	    for (Piece piece : pieces) {
+	        boolean pieceValid = valid.isPresent(piece.getIndex());
+	        piece.restoreState(pieceValid ? piece.getLength() : 0, pieceValid);
+	        bytes += piece.getCompletion();
+	    }
+	    completedBytes.set(bytes);
+	    reportCompletion();
+	    forceSave();
+	    return valid;
+	}
+	
+	public void reportCacheStats() {
+	    eventBus.post(writeCache.getStats());
+	    eventBus.post(readCache.getStats());
 	}
 	
 	public Piece piece(int index) {
@@ -165,41 +291,35 @@ public class TorrentStorage implements AutoCloseable {
 	@Override
 	public void close() throws IOException {
 		forceSave();
-		dataChannel.close();
-		stateChannel.close();
+		for (Piece piece : pieces) {
+		    readCache.invalidate(piece);
+		}
+		backend.close();
+		if(journal != null) {
+		    journal.close();
+		}
 	}
 	
 	public BitField asBitField() {
 	    BitField bf = new BitField(pieces.size());
 	    for (Piece piece : pieces) {
-            bf.setPresent(piece.getIndex(), piece.isComplete());
+            bf.setPresent(piece.getIndex(), piece.isVerified());
         }
 	    return bf;
 	}
 	
+	/**
+	 * The data is already in its final location, so it only needs to be flushed
+	 */
 	public void commit() throws IOException {
-	    logger.info("Writing torrent data to {}", ConfigManager.getIncomingDir());
-	    Path baseDir = Paths.get(ConfigManager.getIncomingDir());
-	    if(metadata.isMultifile()) {
-	        baseDir = baseDir.resolve(metadata.getDirectory());
-	    }
-	    Files.createDirectories(baseDir);
-	    if(!metadata.isMultifile()) {
-	        Files.copy(dataFile.toPath(), baseDir.resolve(metadata.getDirectory()));
-	    } else {
-	        int position = 0;
-	        for (ContainedFile cf : metadata.getFiles()) {
-	            try (FileChannel fc = FileChannel.open(baseDir.resolve(cf.getName()), StandardOpenOption.WRITE, StandardOpenOption.CREATE);) {
-	                logger.debug("Writing file {}", cf.getName());
-	                dataChannel.transferTo(position, cf.getLength(), fc);
-	                position += cf.getLength();
-	            }
-	        }
-	    }
+	    writeCache.flushAll();
+	    backend.force();
+	    commited = true;
+	    logger.info("Torrent data written to {}", ConfigManager.getIncomingDir());
 	}
 	
 	public boolean isCommited() {
-	    return Files.exists(Paths.get(ConfigManager.getIncomingDir()).resolve(metadata.getDirectory()));
+	    return commited;
 	}
 
 }
@@ -0,0 +1,90 @@
+package es.amanzag.yatorrent.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.amanzag.yatorrent.events.WriteCacheStatsEvent;
+
+/**
+ * Keeps track of the data received that is still in memory. Pieces hold their blocks until they
+ * are complete and then write them all at once, but if the data in memory goes beyond the limit,
+ * the pieces that have been waiting the longest are written partially.
+ * <p>
+ * Pieces are never flushed holding the lock of the cache, and the cache is never used holding
+ * the lock of a piece.
+ */
+class WriteBackCache {
+
+    private long maxDirtyBytes;
+    private long dirtyBytes;
+    private long flushedBytes;
+    private long flushes;
+    /** Dirty bytes of each piece, the ones that became dirty first go first */
+    private Map<Piece, Integer> dirtyPieces;
+
+    WriteBackCache(long maxDirtyBytes) {
+        this.maxDirtyBytes = maxDirtyBytes;
+        dirtyPieces = new LinkedHashMap<>();
+    }
+
+    void added(Piece piece, int bytes) throws IOException {
+        List<Piece> victims = new ArrayList<>();
+        synchronized (this) {
+            dirtyBytes += bytes;
+            dirtyPieces.merge(piece, bytes, Integer::sum);
+            long toFree = dirtyBytes - maxDirtyBytes;
+            Iterator<Map.Entry<Piece, Integer>> oldest = dirtyPieces.entrySet().iterator();
+            while (toFree > 0 && oldest.hasNext()) {
+                Map.Entry<Piece, Integer> entry = oldest.next();
+                victims.add(entry.getKey());
+                toFree -= entry.getValue();
+            }
+        }
+        for (Piece victim : victims) {
+            victim.flush();
+        }
+    }
+
+    /**
+     * @param written false if the data was discarded instead of written
+     */
+    synchronized void removed(Piece piece, int bytes, boolean written) {
+        dirtyBytes -= bytes;
+        Integer remaining = dirtyPieces.get(piece);
+        if (remaining != null) {
+            if (remaining <= bytes) {
+                dirtyPieces.remove(piece);
+            } else {
+                dirtyPieces.put(piece, remaining - bytes);
+            }
+        }
+        if (written) {
+            flushedBytes += bytes;
+            flushes++;
+        }
+    }
+
+    void flushAll() throws IOException {
+        List<Piece> pieces;
+        synchronized (this) {
+            pieces = new ArrayList<>(dirtyPieces.keySet());
+        }
+        for (Piece piece : pieces) {
+            piece.flush();
+        }
+    }
+
+    synchronized WriteCacheStatsEvent getStats() {
+        WriteCacheStatsEvent e = new WriteCacheStatsEvent();
+        e.dirtyBytes = dirtyBytes;
+        e.dirtyPieces = dirtyPieces.size();
+        e.flushedBytes = flushedBytes;
+        e.flushes = flushes;
+        return e;
+    }
+
+}
@@ -11,6 +11,7 @@ import es.amanzag.yatorrent.metafile.MalformedMetadataException;
 import es.amanzag.yatorrent.metafile.MetafileDownloader;
 import es.amanzag.yatorrent.protocol.IncomingConnectionsManager;
 import es.amanzag.yatorrent.protocol.TorrentDownload;
+import es.amanzag.yatorrent.protocol.TorrentEngine;
 import es.amanzag.yatorrent.util.ConfigManager;
 
 public class ManagerTest {
@@ -23,7 +24,8 @@ public class ManagerTest {
 		        new URL("http://dl7.torrentreactor.net/download.php?id=18512523&name=American+Dad+S11E15+HDTV+x264-LOL%5Bettv%5D&hash=055c047535925358181004dc279617eff2ca3cbc"));
 		// more initialization code
 		IncomingConnectionsManager incoming = new IncomingConnectionsManager(ConfigManager.getPort());
-		TorrentDownload dm = new TorrentDownload(torrentFile, new EventBus());
+		TorrentEngine engine = new TorrentEngine();
+		TorrentDownload dm = new TorrentDownload(torrentFile, new EventBus(), engine);
 		incoming.addPeerConnectionListener(dm);
 		dm.start();
 		incoming.start();
@@ -32,7 +34,7 @@ public class ManagerTest {
 		    public void run() {
 		        dm.destroy();
 		        try {
-                    dm.getTorrentThread().join();
+                    engine.shutdown();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -12,8 +12,10 @@ import es.amanzag.yatorrent.metafile.MalformedMetadataException;
 import es.amanzag.yatorrent.metafile.MetafileDownloader;
 import es.amanzag.yatorrent.metafile.TorrentMetadata;
 import es.amanzag.yatorrent.storage.Piece;
+import es.amanzag.yatorrent.storage.ReadCache;
 import es.amanzag.yatorrent.storage.TorrentStorage;
 import es.amanzag.yatorrent.storage.TorrentStorageException;
+import es.amanzag.yatorrent.util.ConfigManager;
 
 public class StorageTest {
 
@@ -29,7 +31,7 @@ public class StorageTest {
 		
 		// more initialization code
 		try {
-			storage = new TorrentStorage(torrent, torrentFile, new EventBus());
+			storage = new TorrentStorage(torrent, torrentFile, new EventBus(), new ReadCache(ConfigManager.getReadCacheSize()));
 		} catch (IOException e1) {
 			System.err.println("Error creating temp directory for torrent "+torrent.getName()+": "+e1.getMessage());
 		}
@@ -0,0 +1,146 @@
+package es.amanzag.yatorrent.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.amanzag.yatorrent.events.BufferPoolStatsEvent;
+
+/**
+ * Pool of direct buffers for the network and the blocks waiting to be written. Buffers are grouped
+ * in a few size classes, and each class is allocated in slabs of several buffers that are never
+ * freed, so there's no garbage and no copy to a temporary direct buffer when doing socket I/O.
+ * <p>
+ * Every buffer acquired must be released exactly once, and must not be used after that. Requests
+ * bigger than the biggest class, or beyond the memory limit of the pool, are served with regular
+ * heap buffers, which are ignored when released.
+ */
+public class BufferPool {
+    
+    /** The biggest class fits a whole PIECE message of 16 KiB */
+    private final static int[] SIZE_CLASSES = { 128, 1024, 8 * 1024, 16 * 1024 + 64 };
+    private final static int SLAB_BUFFERS = 16;
+    
+    private static BufferPool defaultPool;
+    
+    private SizeClass[] classes;
+    private AtomicLong hits;
+    private AtomicLong misses;
+    
+    public BufferPool(long maxMemory) {
+        classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < classes.length; i++) {
+            long maxBuffers = maxMemory / SIZE_CLASSES.length / SIZE_CLASSES[i];
+            classes[i] = new SizeClass(SIZE_CLASSES[i], (int) Math.max(SLAB_BUFFERS, maxBuffers));
+        }
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+    
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BufferPool(ConfigManager.getBufferPoolMemory());
+        }
+        return defaultPool;
+    }
+    
+    /**
+     * @return a buffer with position 0 and limit size, with undefined content
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sizeClass = classFor(size);
+        ByteBuffer buffer = sizeClass == null ? null : sizeClass.free.poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buffer = sizeClass == null ? null : sizeClass.allocate();
+            if (buffer == null) {
+                return ByteBuffer.allocate(size);
+            }
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+    
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size == buffer.capacity()) {
+                sizeClass.free.offer(buffer);
+                return;
+            }
+        }
+    }
+    
+    private SizeClass classFor(int size) {
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size) {
+                return sizeClass;
+            }
+        }
+        return null;
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public BufferPoolStatsEvent getStats() {
+        BufferPoolStatsEvent e = new BufferPoolStatsEvent();
+        e.hits = hits.get();
+        e.misses = misses.get();
+        for (SizeClass sizeClass : classes) {
+            e.allocatedBytes += sizeClass.getAllocated() * (long) sizeClass.size;
+        }
+        return e;
+    }
+    
+    private static class SizeClass {
+        final int size;
+        final int maxBuffers;
+        final ConcurrentLinkedQueue<ByteBuffer> free;
+        private int allocated;
+        
+        SizeClass(int size, int maxBuffers) {
+            this.size = size;
+            this.maxBuffers = maxBuffers;
+            free = new ConcurrentLinkedQueue<>();
+            allocated = 0;
+        }
+        
+        /**
+         * Allocates a new slab, keeps one of its buffers for the caller and leaves the rest in the
+         * free list
+         * @return null if the class reached its limit
+         */
+        synchronized ByteBuffer allocate() {
+            int count = Math.min(SLAB_BUFFERS, maxBuffers - allocated);
+            if (count <= 0) {
+                return null;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(count * size);
+            for (int i = 1; i < count; i++) {
+                slab.limit((i + 1) * size);
+                slab.position(i * size);
+                free.offer(slab.slice());
+            }
+            allocated += count;
+            slab.limit(size);
+            slab.position(0);
+            return slab.slice();
+        }
+        
+        synchronized int getAllocated() {
+            return allocated;
+        }
+    }
+
+}
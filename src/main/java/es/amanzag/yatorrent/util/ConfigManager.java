@@ -30,4 +30,137 @@ public class ConfigManager {
 		return 30;
 	}
 	
+	/**
+	 * Number of selector threads shared by all the torrents. One per core by default.
+	 */
+	public static int getNetworkThreads() {
+		return Integer.getInteger("yatorrent.network.threads", Runtime.getRuntime().availableProcessors());
+	}
+	
+	public static int getHashingThreads() {
+		return Integer.getInteger("yatorrent.hashing.threads", Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Maximum number of completed pieces waiting to be verified
+	 */
+	public static int getHashingQueueSize() {
+		return 64;
+	}
+	
+	/**
+	 * Whether the data already downloaded must be verified when a torrent is loaded, instead of trusting the state file
+	 */
+	public static boolean isRecheckOnStartup() {
+		return Boolean.getBoolean("yatorrent.recheck");
+	}
+	
+	/**
+	 * How the pieces to download are chosen: rarest_first, sequential or priority
+	 */
+	public static String getPiecePickerPolicy() {
+		return System.getProperty("yatorrent.picker", "rarest_first");
+	}
+	
+	/**
+	 * Maximum amount of memory kept in the pool of network and block buffers, in bytes
+	 */
+	public static long getBufferPoolMemory() {
+		return Long.getLong("yatorrent.buffers.memory", 64 * 1024 * 1024);
+	}
+	
+	/**
+	 * Default storage for the data of the torrents: positional, mapped or memory
+	 */
+	public static String getStorageBackend() {
+		return System.getProperty("yatorrent.storage", "positional");
+	}
+	
+	/**
+	 * Maximum amount of received data of each torrent kept in memory before being written, in bytes
+	 */
+	public static long getWriteCacheSize() {
+		return Long.getLong("yatorrent.cache.write", 32 * 1024 * 1024);
+	}
+	
+	/**
+	 * Maximum amount of memory used to keep the pieces being uploaded by all the torrents, in bytes
+	 */
+	public static long getReadCacheSize() {
+		return Long.getLong("yatorrent.cache.read", 64 * 1024 * 1024);
+	}
+	
+	public static int getDiskThreads() {
+		return Integer.getInteger("yatorrent.disk.threads", 2);
+	}
+	
+	/**
+	 * Amount of received data waiting to be written above which sockets stop being read, in bytes
+	 */
+	public static long getMaxPendingWrites() {
+		return Long.getLong("yatorrent.disk.pending", 16 * 1024 * 1024);
+	}
+	
+	/**
+	 * Milliseconds between two saves of the progress of a torrent, which is what can be lost in a crash
+	 */
+	public static long getResumeSyncInterval() {
+		return Long.getLong("yatorrent.resume.interval", 5000);
+	}
+	
+	/**
+	 * How the files of the torrents are allocated: sparse, full or lazy
+	 */
+	public static String getAllocationMode() {
+		return System.getProperty("yatorrent.allocation", "sparse");
+	}
+	
+	public static int getSchedulerThreads() {
+		return Integer.getInteger("yatorrent.scheduler.threads", 2);
+	}
+	
+	/**
+	 * Milliseconds between two runs of the connection, download and upload schedulers of a torrent
+	 */
+	public static long getSchedulingInterval() {
+		return 100;
+	}
+	
+	/**
+	 * Number of peers of each torrent we upload to at the same time, besides the optimistic unchoke
+	 */
+	public static int getUploadSlots() {
+		return Integer.getInteger("yatorrent.upload.slots", 4);
+	}
+	
+	/**
+	 * Maximum download bandwidth of all the torrents together, in bytes per second. 0 for no limit.
+	 */
+	public static long getDownloadRate() {
+		return Long.getLong("yatorrent.rate.download", 0);
+	}
+	
+	/**
+	 * Maximum upload bandwidth of all the torrents together, in bytes per second. 0 for no limit.
+	 */
+	public static long getUploadRate() {
+		return Long.getLong("yatorrent.rate.upload", 0);
+	}
+	
+	public static long getTorrentDownloadRate() {
+		return Long.getLong("yatorrent.rate.torrent.download", 0);
+	}
+	
+	public static long getTorrentUploadRate() {
+		return Long.getLong("yatorrent.rate.torrent.upload", 0);
+	}
+	
+	public static long getPeerDownloadRate() {
+		return Long.getLong("yatorrent.rate.peer.download", 0);
+	}
+	
+	public static long getPeerUploadRate() {
+		return Long.getLong("yatorrent.rate.peer.upload", 0);
+	}
+	
 }
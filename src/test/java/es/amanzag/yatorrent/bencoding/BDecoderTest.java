@@ -0,0 +1,106 @@
+package es.amanzag.yatorrent.bencoding;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+
+import es.amanzag.yatorrent.metafile.TorrentMetadata;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class BDecoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String data) {
+        return data.getBytes(Charsets.ISO_8859_1);
+    }
+
+    @Test
+    @Parameters({"i42e", "i-7e", "i0e", "4:spam", "0:", "le", "li1e3:abce", "d1:ai1e1:bl1:cee", "d4:infod6:lengthi5eee",
+            "de", "d1:ad1:bdeee", "ldelee", "d1:alee"})
+    public void testRoundTrip(String data) throws Exception {
+        Object value = new BDecoder(bytes(data)).decodeNext();
+        assertThat(new String(BEncoder.toBuffer(value).array(), Charsets.ISO_8859_1), is(data));
+    }
+
+    @Test
+    public void testIntegerTypes() throws Exception {
+        Object small = new BDecoder(bytes("i3e")).decodeNext();
+        Object large = new BDecoder(bytes("i5368709120e")).decodeNext();
+        Object huge = new BDecoder(bytes("i123456789012345678901234567890e")).decodeNext();
+        assertThat(small, is((Object) 3L));
+        assertThat(large, is((Object) 5368709120L));
+        assertThat(huge, is((Object) new BigInteger("123456789012345678901234567890")));
+    }
+
+    @Test
+    public void testBinaryStrings() throws Exception {
+        byte[] binary = new byte[256];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+        String decoded = new BDecoder(BEncoder.toBuffer(binary)).decodeNext();
+        assertThat(BDecoder.toBytes(decoded), is(binary));
+    }
+
+    @Test
+    public void testInputStream() throws Exception {
+        Map<String, Object> decoded = new BDecoder(new ByteArrayInputStream(bytes("d1:ai1ee"))).decodeNext();
+        assertThat(decoded.get("a"), is((Object) 1L));
+    }
+
+    @Test(expected=BEncodingException.class)
+    @Parameters({"d1:ai1e", "d1:ae", "li1e", "4:spa", "i12", "d", "x"})
+    public void testMalformedData(String data) throws Exception {
+        new BDecoder(bytes(data)).decodeNext();
+    }
+
+    @Test
+    public void testInfoHashOfNonCanonicalFile() throws Exception {
+        byte[] hashes = new byte[20];
+        Arrays.fill(hashes, (byte) 0xAB);
+        // keys not sorted, a re-encoded info dictionary wouldn't have the same bytes
+        String info = "d4:name5:a.txt12:piece lengthi16e6:lengthi10e6:pieces20:" +
+                new String(hashes, Charsets.ISO_8859_1) + "e";
+        String torrent = "d4:info" + info + "8:announce16:http://x/trackere";
+        File file = folder.newFile("test.torrent");
+        Files.write(file.toPath(), bytes(torrent));
+
+        TorrentMetadata metadata = TorrentMetadata.createFromFile(file);
+
+        byte[] expected = MessageDigest.getInstance("SHA1").digest(bytes(info));
+        assertThat(metadata.getInfoHash(), is(expected));
+        Object reencoded = new BDecoder(bytes(info)).decodeNext();
+        assertThat(BEncoder.toBuffer(reencoded).array(), not(bytes(info)));
+        assertThat(metadata.getNumPieces(), is(1));
+        assertThat(metadata.getPieceHash(0), is(hashes));
+        assertThat(metadata.getTotalLength(), is(10L));
+        assertThat(metadata.getAnnounce(), is("http://x/tracker"));
+    }
+
+    @Test
+    public void testEncodedMapOrderDoesNotMatter() throws Exception {
+        Map<String, Object> map = ImmutableMap.of("b", 1L, "a", 2L);
+        Map<String, Object> decoded = new BDecoder(BEncoder.toBuffer(map)).decodeNext();
+        assertThat(decoded, is(map));
+    }
+
+}
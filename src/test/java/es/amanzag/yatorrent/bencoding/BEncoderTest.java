@@ -0,0 +1,105 @@
+package es.amanzag.yatorrent.bencoding;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class BEncoderTest {
+
+    private static String encode(Object value) {
+        ByteBuffer encoded = BEncoder.toBuffer(value);
+        assertThat(encoded.remaining(), is(BEncoder.encodedSize(value)));
+        return new String(encoded.array(), encoded.position(), encoded.remaining(), Charsets.ISO_8859_1);
+    }
+
+    @Test
+    @Parameters({"0", "-1", "9", "10", "-10", "9223372036854775807", "-9223372036854775808"})
+    public void testLongs(long value) throws Exception {
+        assertThat(encode(value), is("i" + value + "e"));
+    }
+
+    @Test
+    public void testIntegerTypes() throws Exception {
+        assertThat(encode(7), is("i7e"));
+        assertThat(encode((short) -3), is("i-3e"));
+        assertThat(encode(new BigInteger("-123456789012345678901234567890")), is("i-123456789012345678901234567890e"));
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        assertThat(encode("spam"), is("4:spam"));
+        assertThat(encode(""), is("0:"));
+        assertThat(encode(new byte[] { 'a', 'b' }), is("2:ab"));
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 'x', 'y', 'z' });
+        buffer.position(1);
+        assertThat(encode(buffer), is("2:yz"));
+        assertThat(buffer.position(), is(1));
+    }
+
+    @Test
+    public void testContainers() throws Exception {
+        assertThat(encode(Arrays.asList()), is("le"));
+        assertThat(encode(Arrays.asList(1L, "a", Arrays.asList())), is("li1e1:alee"));
+        assertThat(encode(new HashMap<>()), is("de"));
+    }
+
+    @Test
+    public void testEmptyContainersRoundTrip() throws Exception {
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", new HashMap<>());
+        map.put("b", Arrays.asList(new HashMap<>()));
+        Object decoded = new BDecoder(BEncoder.toBuffer(map)).decodeNext();
+        assertThat(encode(decoded), is("d1:ade1:bldeee"));
+    }
+
+    @Test
+    public void testSortedDictionaryKeys() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("zeta", 1L);
+        map.put("alpha", 2L);
+        map.put("Zeta", 3L);
+        map.put("alp", 4L);
+        String expected = "d4:Zetai3e3:alpi4e5:alphai2e4:zetai1ee";
+        assertThat(encode(map), is(expected));
+        assertThat(encode(new TreeMap<>(map)), is(expected));
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BEncoder(out).encode(Arrays.asList("a", 1L));
+        assertThat(new String(out.toByteArray(), Charsets.ISO_8859_1), is("l1:ai1ee"));
+    }
+
+    @Test
+    public void testEncodeAtPosition() throws Exception {
+        ByteBuffer target = ByteBuffer.allocate(10);
+        target.put((byte) 'x');
+        BEncoder.encode("ab", target);
+        assertThat(target.position(), is(0));
+        assertThat(target.limit(), is(5));
+    }
+
+    @Test(expected=BEncodingException.class)
+    public void testUnsupportedType() throws Exception {
+        BEncoder.encodedSize(new Object());
+    }
+
+}
@@ -0,0 +1,108 @@
+package es.amanzag.yatorrent.bencoding;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+
+import es.amanzag.yatorrent.bencoding.BReader.Token;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class BReaderTest {
+
+    private static BReader reader(String data) {
+        return new BReader(data.getBytes(Charsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testTokens() throws Exception {
+        BReader reader = reader("d3:keyli42e4:spamee");
+        assertThat(reader.next(), is(Token.DICTIONARY));
+        assertThat(reader.next(), is(Token.STRING));
+        assertThat(reader.getStringAsText(), is("key"));
+        assertThat(reader.next(), is(Token.LIST));
+        assertThat(reader.getDepth(), is(2));
+        assertThat(reader.next(), is(Token.INTEGER));
+        assertThat(reader.getInteger(), is(42L));
+        assertThat(reader.next(), is(Token.STRING));
+        assertThat(reader.getStringAsText(), is("spam"));
+        assertThat(reader.next(), is(Token.END));
+        assertThat(reader.next(), is(Token.END));
+        assertThat(reader.getDepth(), is(0));
+        assertThat(reader.next(), is(Token.EOF));
+    }
+
+    @Test
+    @Parameters({"0", "-1", "2147483648", "-2147483649", "9223372036854775807", "-9223372036854775807"})
+    public void testLongIntegers(long value) throws Exception {
+        BReader reader = reader("i" + value + "e");
+        reader.expect(Token.INTEGER);
+        assertThat(reader.isBigInteger(), is(false));
+        assertThat(reader.getInteger(), is(value));
+    }
+
+    @Test
+    @Parameters({"9223372036854775808", "-9223372036854775809", "123456789012345678901234567890"})
+    public void testBigIntegers(String value) throws Exception {
+        BReader reader = reader("i" + value + "e");
+        reader.expect(Token.INTEGER);
+        assertThat(reader.isBigInteger(), is(true));
+        assertThat(reader.getBigInteger(), is(new BigInteger(value)));
+    }
+
+    @Test(expected=BEncodingException.class)
+    public void testBigIntegerAsLong() throws Exception {
+        BReader reader = reader("i9223372036854775808e");
+        reader.next();
+        reader.getInteger();
+    }
+
+    @Test(expected=BEncodingException.class)
+    @Parameters({"i12", "ie", "i-e", "i1x2e", "5:abc", "x", "-1:a", "e", "99999999999999999999:a"})
+    public void testMalformedTokens(String data) throws Exception {
+        reader(data).next();
+    }
+
+    @Test
+    public void testSkipValue() throws Exception {
+        BReader reader = reader("d1:ad1:bli1ei2eee1:c3:xyze");
+        reader.expect(Token.DICTIONARY);
+        reader.expect(Token.STRING);
+        int start = reader.getPosition();
+        reader.skipValue();
+        assertThat(reader.getPosition() - start, is("d1:bli1ei2eee".length()));
+        assertThat(reader.getDepth(), is(1));
+        reader.expect(Token.STRING);
+        assertThat(reader.getStringAsText(), is("c"));
+        reader.skipValue();
+        assertThat(reader.next(), is(Token.END));
+    }
+
+    @Test(expected=BEncodingException.class)
+    @Parameters({"d1:ali1e", "l", "e"})
+    public void testSkipTruncatedValue(String data) throws Exception {
+        reader(data).skipValue();
+    }
+
+    @Test
+    public void testStringsAreSlicesOfTheData() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap("xx4:spam".getBytes(Charsets.ISO_8859_1));
+        data.position(2);
+        BReader reader = new BReader(data);
+        reader.expect(Token.STRING);
+        ByteBuffer string = reader.getString();
+        assertThat(string.remaining(), is(4));
+        data.put(5, (byte) 'S');
+        assertThat(string.get(1), is((byte) 'S'));
+        assertThat(data.position(), is(2));
+    }
+
+}
@@ -64,4 +64,76 @@ public class BitFieldTest {
         assertThat(bf.isPresent(4), is(false));
     }
     
+    @Test
+    @Parameters({"1", "8", "63", "64", "65", "130"})
+    public void testWireFormat(int bits) throws Exception {
+        BitField bf = new BitField(bits);
+        bf.setPresent(0, true);
+        bf.setPresent(bits-1, true);
+        byte[] wire = bf.asByteArray();
+        assertThat(wire.length, is((bits + 7) / 8));
+        assertThat(wire[0] & 0x80, is(0x80));
+        assertThat(wire[wire.length-1] & (0x80 >>> ((bits-1) % 8)), is(0x80 >>> ((bits-1) % 8)));
+        BitField parsed = new BitField(bits, wire);
+        assertThat(parsed.cardinality(), is(bits == 1 ? 1 : 2));
+        assertThat(parsed.containsAll(bf) && bf.containsAll(parsed), is(true));
+    }
+    
+    @Test
+    public void testSpareBitsAreIgnored() throws Exception {
+        BitField bf = new BitField(10, new byte[] { (byte) 0xff, (byte) 0xff});
+        assertThat(bf.cardinality(), is(10));
+        assertThat(bf.hasBitsUnset(), is(false));
+        assertThat(bf.reverse().hasBitsSet(), is(false));
+    }
+    
+    @Test
+    public void testNextSetAndClearBit() throws Exception {
+        BitField bf = new BitField(200);
+        bf.setPresent(3, true);
+        bf.setPresent(64, true);
+        bf.setPresent(199, true);
+        assertThat(bf.nextSetBit(0), is(3));
+        assertThat(bf.nextSetBit(4), is(64));
+        assertThat(bf.nextSetBit(65), is(199));
+        assertThat(bf.nextSetBit(200), is(-1));
+        assertThat(bf.nextClearBit(3), is(4));
+        BitField full = bf.reverse();
+        full.add(bf);
+        assertThat(full.nextClearBit(0), is(-1));
+        assertThat(full.cardinality(), is(200));
+    }
+    
+    @Test
+    public void testSetOperations() throws Exception {
+        BitField local = new BitField(100);
+        BitField remote = new BitField(100);
+        local.setPresent(10, true);
+        remote.setPresent(10, true);
+        assertThat(local.containsAll(remote), is(true));
+        assertThat(local.intersects(remote), is(true));
+        remote.setPresent(90, true);
+        assertThat(local.containsAll(remote), is(false));
+        assertThat(remote.cardinalityAndNot(local), is(1));
+        remote.andNot(local);
+        assertThat(remote.isPresent(10), is(false));
+        assertThat(remote.isPresent(90), is(true));
+        assertThat(local.intersects(remote), is(false));
+    }
+    
+    @Test
+    public void testNextCommonBit() throws Exception {
+        BitField a = new BitField(200);
+        BitField b = new BitField(200);
+        a.setPresent(3, true);
+        a.setPresent(70, true);
+        a.setPresent(199, true);
+        b.setPresent(70, true);
+        b.setPresent(150, true);
+        b.setPresent(199, true);
+        assertThat(a.nextCommonBit(b, 0), is(70));
+        assertThat(a.nextCommonBit(b, 71), is(199));
+        assertThat(a.nextCommonBit(b, 200), is(-1));
+    }
+    
 }
@@ -0,0 +1,134 @@
+package es.amanzag.yatorrent.protocol;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import es.amanzag.yatorrent.protocol.PiecePicker.Policy;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class PiecePickerTest {
+
+    private static final int SIZE = 100;
+
+    private static BitField pieces(int... indexes) {
+        BitField bitField = new BitField(SIZE);
+        for (int index : indexes) {
+            bitField.setPresent(index, true);
+        }
+        return bitField;
+    }
+
+    private static BitField allPieces() {
+        return new BitField(SIZE).reverse();
+    }
+
+    private static Optional<Integer> pick(PiecePicker picker, BitField peerPieces) {
+        return picker.pick(peerPieces, i -> true);
+    }
+
+    @Test
+    public void testRarestFirst() throws Exception {
+        PiecePicker picker = PiecePicker.create(Policy.RAREST_FIRST, new BitField(SIZE));
+        picker.addAvailability(allPieces());
+        picker.addAvailability(allPieces());
+        picker.removeAvailability(pieces(70));
+        assertThat(pick(picker, allPieces()), is(Optional.of(70)));
+        // the peer doesn't have the rarest one, so it gets the next level
+        BitField peer = allPieces();
+        peer.setPresent(70, false);
+        picker.removeAvailability(pieces(30));
+        picker.removeAvailability(pieces(30));
+        picker.addAvailability(30);
+        assertThat(pick(picker, peer), is(Optional.of(30)));
+    }
+
+    @Test
+    public void testTiesArePickedAtRandom() throws Exception {
+        PiecePicker picker = PiecePicker.create(Policy.RAREST_FIRST, new BitField(SIZE));
+        picker.addAvailability(allPieces());
+        picker.removeAvailability(pieces(10, 50, 90));
+        Set<Integer> picked = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            picked.add(pick(picker, allPieces()).get());
+        }
+        assertThat(picked, is(new HashSet<>(Arrays.asList(10, 50, 90))));
+    }
+
+    @Test
+    public void testAvailabilityUpdates() throws Exception {
+        PiecePicker picker = PiecePicker.create(Policy.RAREST_FIRST, new BitField(SIZE));
+        BitField first = pieces(1, 2);
+        BitField second = pieces(1, 2);
+        // bitfields
+        picker.addAvailability(first);
+        picker.addAvailability(second);
+        // have
+        picker.addAvailability(1);
+        assertThat(pick(picker, pieces(1, 2)), is(Optional.of(2)));
+        picker.addAvailability(2);
+        picker.addAvailability(2);
+        assertThat(pick(picker, pieces(1, 2)), is(Optional.of(1)));
+        // disconnections
+        picker.removeAvailability(first);
+        picker.removeAvailability(second);
+        assertThat(pick(picker, pieces(1, 2)), is(Optional.of(1)));
+    }
+
+    @Test
+    @Parameters({"RAREST_FIRST", "SEQUENTIAL", "PRIORITY"})
+    public void testOnlyNeededPiecesThePeerHasArePicked(Policy policy) throws Exception {
+        PiecePicker picker = PiecePicker.create(policy, pieces(5));
+        picker.addAvailability(allPieces());
+        assertThat(pick(picker, pieces(5)), is(Optional.empty()));
+        assertThat(pick(picker, new BitField(SIZE)), is(Optional.empty()));
+        picker.setNeeded(6, false);
+        assertThat(pick(picker, pieces(5, 6)), is(Optional.empty()));
+        picker.setNeeded(6, true);
+        assertThat(pick(picker, pieces(5, 6)), is(Optional.of(6)));
+        assertThat(picker.pick(pieces(6, 7), i -> i != 6), is(Optional.of(7)));
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        PiecePicker picker = PiecePicker.create(Policy.SEQUENTIAL, pieces(0));
+        picker.addAvailability(allPieces());
+        picker.addAvailability(allPieces());
+        picker.removeAvailability(pieces(90));
+        assertThat(pick(picker, allPieces()), is(Optional.of(1)));
+        picker.setNeeded(1, false);
+        assertThat(pick(picker, allPieces()), is(Optional.of(2)));
+        assertThat(pick(picker, pieces(40, 90)), is(Optional.of(40)));
+    }
+
+    @Test
+    public void testStrictPriority() throws Exception {
+        PiecePicker picker = PiecePicker.create(Policy.PRIORITY, new BitField(SIZE));
+        picker.addAvailability(allPieces());
+        picker.addAvailability(allPieces());
+        picker.removeAvailability(pieces(10));
+        picker.setPriority(80, 1);
+        picker.setPriority(60, 1);
+        picker.addAvailability(60);
+        // the rarest among the highest priority, although piece 10 is rarer
+        assertThat(pick(picker, allPieces()), is(Optional.of(80)));
+        picker.setNeeded(80, false);
+        assertThat(pick(picker, allPieces()), is(Optional.of(60)));
+        picker.setNeeded(60, false);
+        assertThat(pick(picker, allPieces()), is(Optional.of(10)));
+        picker.setPriority(20, 2);
+        assertThat(pick(picker, pieces(10, 20)), is(Optional.of(20)));
+        // a peer without the pieces with priority gets the rest
+        assertThat(pick(picker, pieces(10, 30)), is(Optional.of(10)));
+    }
+
+}
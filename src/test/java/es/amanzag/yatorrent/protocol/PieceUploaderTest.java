@@ -0,0 +1,221 @@
+package es.amanzag.yatorrent.protocol;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import es.amanzag.yatorrent.util.ConfigManager;
+
+public class PieceUploaderTest {
+
+    private static final long ROUND = 10000;
+
+    private PeerRepository repository;
+    private BitField localBitField;
+    private PieceUploader uploader;
+    private List<FakePeer> peers;
+    private long now;
+    private int slots;
+
+    /**
+     * Connection that only keeps the state the uploader looks at, and doesn't send anything
+     */
+    private static class FakePeer extends PeerConnection {
+        boolean interested = true;
+        boolean choking = true;
+        boolean snubbing = false;
+        /** Bytes per round */
+        long rate;
+        long transferred;
+
+        FakePeer(int id, long rate) {
+            super(new Peer("10.0.0." + id, 6881), null);
+            this.rate = rate;
+        }
+
+        @Override
+        public boolean isPeerInterested() {
+            return interested;
+        }
+
+        @Override
+        public boolean isAmChoking() {
+            return choking;
+        }
+
+        @Override
+        public void setAmChoking(boolean amChoking) {
+            choking = amChoking;
+        }
+
+        @Override
+        public boolean isSnubbing(long timeout, long now) {
+            return snubbing;
+        }
+
+        @Override
+        public long getDownloadedBytes() {
+            return transferred;
+        }
+
+        @Override
+        public long getUploadedBytes() {
+            return transferred;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new PeerRepository();
+        localBitField = new BitField(10);
+        uploader = new PieceUploader(repository, localBitField);
+        peers = new ArrayList<>();
+        now = 1_000_000;
+        slots = ConfigManager.getUploadSlots();
+    }
+
+    private void addPeers(int count) {
+        for (int i = 0; i < count; i++) {
+            FakePeer peer = new FakePeer(peers.size(), (peers.size() + 1) * 1000);
+            peers.add(peer);
+            repository.add(peer);
+        }
+    }
+
+    /**
+     * Every peer transfers its rate and a new round starts
+     */
+    private void nextRound() {
+        for (FakePeer peer : peers) {
+            peer.transferred += peer.rate;
+        }
+        now += ROUND;
+        uploader.scheduleUploads(now);
+    }
+
+    private Set<FakePeer> unchoked() {
+        Set<FakePeer> unchoked = new HashSet<>();
+        for (FakePeer peer : peers) {
+            if (!peer.choking) {
+                unchoked.add(peer);
+            }
+        }
+        return unchoked;
+    }
+
+    /**
+     * @return the peers that get a slot for their rate, the last ones added are the fastest
+     */
+    private Set<FakePeer> fastest() {
+        return new HashSet<>(peers.subList(peers.size() - slots, peers.size()));
+    }
+
+    private FakePeer optimisticUnchoke() {
+        Set<FakePeer> optimistic = unchoked();
+        optimistic.removeAll(fastest());
+        assertThat(optimistic.size(), is(1));
+        return optimistic.iterator().next();
+    }
+
+    @Test
+    public void testFastestPeersGetTheSlots() throws Exception {
+        addPeers(slots + 4);
+        nextRound();
+        nextRound();
+        assertThat(unchoked(), hasSize(slots + 1));
+        assertTrue(unchoked().containsAll(fastest()));
+    }
+
+    @Test
+    public void testSlotsAreRankedByUploadWhenSeeding() throws Exception {
+        localBitField.add(localBitField.reverse());
+        addPeers(slots + 4);
+        nextRound();
+        nextRound();
+        assertTrue(unchoked().containsAll(fastest()));
+    }
+
+    @Test
+    public void testOptimisticUnchokeRotatesEveryThirtySeconds() throws Exception {
+        addPeers(slots + 6);
+        nextRound();
+        nextRound();
+        Set<FakePeer> picked = new HashSet<>();
+        FakePeer optimistic = optimisticUnchoke();
+        int lastChange = -1;
+        for (int round = 0; round < 30; round++) {
+            nextRound();
+            FakePeer current = optimisticUnchoke();
+            if (current != optimistic) {
+                // it may be picked again, but never replaced before three rounds
+                if (lastChange >= 0) {
+                    assertThat(round - lastChange, greaterThanOrEqualTo(3));
+                }
+                lastChange = round;
+                optimistic = current;
+            }
+            picked.add(current);
+        }
+        // ten random picks among six peers are hardly ever the same one
+        assertThat(picked.size(), greaterThan(1));
+    }
+
+    @Test
+    public void testSnubbingPeersAreOnlyUnchokedOptimistically() throws Exception {
+        addPeers(3);
+        for (FakePeer peer : peers) {
+            peer.snubbing = true;
+        }
+        for (int i = 0; i < 5; i++) {
+            nextRound();
+            assertThat(unchoked(), hasSize(1));
+        }
+        // between rounds they don't take free slots either
+        now += 1000;
+        uploader.scheduleUploads(now);
+        assertThat(unchoked(), hasSize(1));
+    }
+
+    @Test
+    public void testSnubbingIsIgnoredWhenSeeding() throws Exception {
+        localBitField.add(localBitField.reverse());
+        addPeers(3);
+        for (FakePeer peer : peers) {
+            peer.snubbing = true;
+        }
+        nextRound();
+        assertThat(unchoked(), hasSize(3));
+    }
+
+    @Test
+    public void testFreeSlotsAreFilledBetweenRounds() throws Exception {
+        addPeers(2);
+        FakePeer late = peers.get(1);
+        late.interested = false;
+        nextRound();
+        assertThat(late.choking, is(true));
+        late.interested = true;
+        now += 1000;
+        uploader.scheduleUploads(now);
+        assertThat(late.choking, is(false));
+    }
+
+    @Test
+    public void testPeersNotInterestedStayChoked() throws Exception {
+        addPeers(3);
+        for (FakePeer peer : peers) {
+            peer.interested = false;
+        }
+        nextRound();
+        nextRound();
+        assertThat(unchoked(), is(empty()));
+    }
+
+}
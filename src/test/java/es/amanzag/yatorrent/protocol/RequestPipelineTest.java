@@ -0,0 +1,102 @@
+package es.amanzag.yatorrent.protocol;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestPipelineTest {
+
+    private static final int BLOCK_SIZE = 1000;
+
+    private long now;
+    private RequestPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        now = 0;
+        pipeline = new RequestPipeline(BLOCK_SIZE, () -> now);
+    }
+
+    /**
+     * Sends the given number of requests at once and receives all of them after the given time
+     */
+    private void transfer(int blocks, long roundTripTime) {
+        for (int i = 0; i < blocks; i++) {
+            pipeline.requestSent(0, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        now += roundTripTime;
+        for (int i = 0; i < blocks; i++) {
+            assertThat(pipeline.blockReceived(0, i * BLOCK_SIZE, BLOCK_SIZE), is(true));
+        }
+    }
+
+    @Test
+    public void testStartsWithMinimumDepth() throws Exception {
+        assertThat(pipeline.getDepth(), is(RequestPipeline.MIN_DEPTH));
+        for (int i = 0; i < RequestPipeline.MIN_DEPTH; i++) {
+            assertThat(pipeline.hasRoom(), is(true));
+            pipeline.requestSent(0, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        assertThat(pipeline.hasRoom(), is(false));
+    }
+
+    @Test
+    public void testDepthIsBandwidthDelayProduct() throws Exception {
+        // 10 blocks of 1000 bytes in a second with a round trip time of 100 ms
+        for (int i = 0; i < 10; i++) {
+            transfer(1, 100);
+        }
+        assertThat(pipeline.getRate(), is(10_000));
+        // 10 bytes/ms * (100 ms + 1000 ms of margin) = 11 blocks
+        assertThat(pipeline.getDepth(), is(11));
+    }
+
+    @Test
+    public void testDepthNeverGoesBelowMinimum() throws Exception {
+        transfer(1, 1000);
+        assertThat(pipeline.getRate(), is(1000));
+        assertThat(pipeline.getDepth(), is(RequestPipeline.MIN_DEPTH));
+    }
+
+    @Test
+    public void testDepthNeverGoesAboveMaximum() throws Exception {
+        transfer(1000, 900);
+        // the rate is measured when the first block after a second arrives
+        transfer(1, 100);
+        assertThat(pipeline.getDepth(), is(RequestPipeline.MAX_DEPTH));
+    }
+
+    @Test
+    public void testDepthGrowsWithRate() throws Exception {
+        transfer(4, 1000);
+        int depth = pipeline.getDepth();
+        transfer(50, 1000);
+        assertTrue(pipeline.getDepth() > depth);
+    }
+
+    @Test
+    public void testUnrequestedBlocksAreIgnored() throws Exception {
+        pipeline.requestSent(0, 0, BLOCK_SIZE);
+        pipeline.requestSent(0, BLOCK_SIZE, BLOCK_SIZE);
+        assertThat(pipeline.cancel(0, 0), is(true));
+        assertThat(pipeline.blockReceived(0, 0, BLOCK_SIZE), is(false));
+        assertThat(pipeline.blockReceived(1, 0, BLOCK_SIZE), is(false));
+        assertThat(pipeline.getOutstanding(), is(1));
+    }
+
+    @Test
+    public void testStalledWithoutProgress() throws Exception {
+        assertThat(pipeline.isStalled(1000), is(false));
+        pipeline.requestSent(0, 0, BLOCK_SIZE);
+        pipeline.requestSent(0, BLOCK_SIZE, BLOCK_SIZE);
+        now += 800;
+        pipeline.blockReceived(0, 0, BLOCK_SIZE);
+        now += 800;
+        assertThat(pipeline.isStalled(1000), is(false));
+        now += 800;
+        assertThat(pipeline.isStalled(1000), is(true));
+    }
+
+}
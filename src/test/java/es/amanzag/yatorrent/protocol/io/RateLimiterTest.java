@@ -0,0 +1,134 @@
+package es.amanzag.yatorrent.protocol.io;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class RateLimiterTest {
+    
+    private static final long DURATION = 2000;
+    private static final int BATCH = 32 * 1024;
+    
+    /**
+     * Every socket asks for a batch in a loop, waiting what the limiter says when nothing is
+     * granted, like the event loop does
+     * @return the bytes granted to each socket
+     */
+    private long[] runSockets(RateLimiter... sockets) throws InterruptedException {
+        AtomicLongArray granted = new AtomicLongArray(sockets.length);
+        Thread[] threads = new Thread[sockets.length];
+        long end = System.currentTimeMillis() + DURATION;
+        for (int i = 0; i < sockets.length; i++) {
+            int id = i;
+            RateLimiter socket = sockets[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        int bytes = socket.acquire(BATCH);
+                        if (bytes == 0) {
+                            Thread.sleep(Math.max(1, socket.getWaitTime()));
+                        } else {
+                            granted.addAndGet(id, bytes);
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] result = new long[sockets.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = granted.get(i);
+        }
+        return result;
+    }
+    
+    private RateLimiter[] sockets(int count, RateLimiter parent) {
+        RateLimiter[] sockets = new RateLimiter[count];
+        for (int i = 0; i < count; i++) {
+            sockets[i] = new RateLimiter(0, parent);
+        }
+        return sockets;
+    }
+    
+    private long total(long[] granted) {
+        long total = 0;
+        for (long bytes : granted) {
+            total += bytes;
+        }
+        return total;
+    }
+    
+    @Test
+    @Parameters({"1", "20", "50"})
+    public void testGlobalCapIsMet(int count) throws Exception {
+        long rate = 4_000_000;
+        RateLimiter global = new RateLimiter(rate, null);
+        RateLimiter torrent = new RateLimiter(0, global);
+        long total = total(runSockets(sockets(count, torrent)));
+        long expected = rate * DURATION / 1000;
+        // the initial burst is a quarter of a second
+        assertThat(total, lessThanOrEqualTo(expected + rate / 4 + BATCH));
+        assertThat(total, greaterThan(expected * 8 / 10));
+    }
+    
+    @Test
+    public void testChildCapIsRespected() throws Exception {
+        long rate = 1_000_000;
+        long childRate = 100_000;
+        RateLimiter global = new RateLimiter(rate, null);
+        RateLimiter limited = new RateLimiter(childRate, global);
+        RateLimiter free = new RateLimiter(0, global);
+        long[] granted = runSockets(new RateLimiter(0, limited), new RateLimiter(0, free));
+        long expected = childRate * DURATION / 1000;
+        assertThat(granted[0], lessThanOrEqualTo(expected + childRate / 4 + BATCH));
+        assertThat(granted[0], greaterThan(expected * 8 / 10));
+        // the rest of the global rate goes to the other socket
+        assertThat(total(granted), lessThanOrEqualTo(rate * DURATION / 1000 + rate / 4 + BATCH));
+        assertThat(granted[1], greaterThan(granted[0] * 4));
+    }
+    
+    @Test
+    public void testRefundsAreReturned() throws Exception {
+        // slow enough that the tokens refilled while the test runs don't matter
+        RateLimiter global = new RateLimiter(40_000, null);
+        RateLimiter socket = new RateLimiter(0, global);
+        assertThat(socket.acquire(BATCH), is(10_000));
+        assertThat(socket.acquire(BATCH), is(0));
+        assertThat(socket.getWaitTime(), greaterThan(0L));
+        socket.refund(8_000);
+        assertThat(socket.acquire(8_000), is(8_000));
+    }
+    
+    @Test
+    public void testRefundsAreCappedAtTheCapacity() throws Exception {
+        RateLimiter global = new RateLimiter(40_000, null);
+        global.refund(100_000);
+        assertThat(global.acquire(BATCH), is(10_000));
+    }
+    
+    @Test
+    public void testNoSocketIsStarved() throws Exception {
+        int count = 20;
+        long rate = 2_000_000;
+        RateLimiter global = new RateLimiter(rate, null);
+        long[] granted = runSockets(sockets(count, global));
+        long fairShare = total(granted) / count;
+        for (long bytes : granted) {
+            assertThat(bytes, greaterThan(fairShare / 2));
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package es.amanzag.yatorrent.storage;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumeJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File stateFile, journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        stateFile = new File(folder.getRoot(), "state");
+        journalFile = new File(folder.getRoot(), "journal");
+    }
+
+    private int[] reopen(int numPieces) throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, numPieces)) {
+            return journal.getState();
+        }
+    }
+
+    private int[] readSnapshot() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(stateFile.toPath()));
+        int[] state = new int[data.remaining() / 4];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = data.getInt();
+        }
+        return state;
+    }
+
+    @Test
+    public void testEmptyState() throws Exception {
+        assertThat(reopen(3), is(new int[] {0, 0, 0}));
+    }
+
+    @Test
+    public void testOnlyChangedPiecesAreAppended() throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {10, 0, 0});
+            journal.record(new int[] {10, 0, 0});
+            assertThat(journalFile.length(), is(8L));
+            journal.record(new int[] {20, 5, 0});
+            assertThat(journalFile.length(), is(24L));
+        }
+        assertThat(reopen(3), is(new int[] {20, 5, 0}));
+    }
+
+    @Test
+    public void testJournalIsReplayedOverSnapshot() throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {10, 20, 0});
+            journal.compact();
+            journal.record(new int[] {10, 30, 40});
+        }
+        assertThat(readSnapshot(), is(new int[] {10, 20, 0}));
+        assertThat(journalFile.length(), is(16L));
+        assertThat(reopen(3), is(new int[] {10, 30, 40}));
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {10, 0, 0});
+            journal.record(new int[] {10, 20, 0});
+        }
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        assertThat(reopen(3), is(new int[] {10, 0, 0}));
+        assertThat(journalFile.length(), is(8L));
+        // the next records go after the last whole one
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {10, 0, 30});
+        }
+        assertThat(reopen(3), is(new int[] {10, 0, 30}));
+    }
+
+    @Test
+    public void testRecordsOfUnknownPiecesAreIgnored() throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {0, 0, 30});
+        }
+        assertThat(reopen(2), is(new int[] {0, 0}));
+    }
+
+    @Test
+    public void testJournalIsCompactedWhenBiggerThanSnapshot() throws Exception {
+        // the snapshot is bigger than the minimum, so it sets the threshold
+        int numPieces = 20_000;
+        int[] state = new int[numPieces];
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, numPieces)) {
+            for (int i = 0; i < numPieces / 4; i++) {
+                state[i] = i + 1;
+            }
+            journal.record(state);
+            assertThat(journalFile.length(), is(numPieces / 4 * 8L));
+            assertThat(stateFile.exists(), is(false));
+            for (int i = numPieces / 4; i < numPieces; i++) {
+                state[i] = i + 1;
+            }
+            journal.record(state);
+            assertThat(journalFile.length(), is(0L));
+        }
+        assertThat(readSnapshot(), is(state));
+        assertThat(new File(stateFile.getPath() + ".tmp").exists(), is(false));
+        assertThat(reopen(numPieces), is(state));
+    }
+
+    @Test
+    public void testCrashDuringCompaction() throws Exception {
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.record(new int[] {10, 0, 0});
+            journal.compact();
+            journal.record(new int[] {10, 20, 0});
+        }
+        byte[] records = Files.readAllBytes(journalFile.toPath());
+        // died before the rename, the new snapshot is left half written
+        Files.write(new File(stateFile.getPath() + ".tmp").toPath(), new byte[] {1, 2, 3});
+        assertThat(reopen(3), is(new int[] {10, 20, 0}));
+        // died after the rename, before emptying the journal
+        try (ResumeJournal journal = new ResumeJournal(stateFile, journalFile, 3)) {
+            journal.compact();
+        }
+        Files.write(journalFile.toPath(), records);
+        assertThat(readSnapshot(), is(new int[] {10, 20, 0}));
+        assertThat(reopen(3), is(new int[] {10, 20, 0}));
+    }
+
+}